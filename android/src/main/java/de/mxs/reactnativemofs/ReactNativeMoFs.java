@@ -5,12 +5,18 @@ import android.content.ComponentName;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
+import android.graphics.ImageDecoder;
 import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
 
 import androidx.core.content.FileProvider;
 import androidx.exifinterface.media.ExifInterface;
 
+import android.media.MediaMetadataRetriever;
 import android.media.ThumbnailUtils;
 import android.net.Uri;
 import android.os.Build;
@@ -20,6 +26,7 @@ import android.text.TextUtils;
 import android.util.AtomicFile;
 import android.util.Base64;
 import android.util.Log;
+import android.util.Size;
 import android.webkit.MimeTypeMap;
 
 import com.facebook.react.bridge.ActivityEventListener;
@@ -36,687 +43,4124 @@ import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.modules.blob.BlobModule;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nonnull;
 import javax.crypto.Cipher;
 import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public final class ReactNativeMoFs extends ReactContextBaseJavaModule {
     private final int REQUEST_CODE = 13131;
 
-    private boolean verbose = false;
+    private volatile boolean verbose = false;
+
+    private static final int CPU_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors());
+    // rough upper bound for the heap a single decode / transform / encode needs
+    private static final long IMAGE_JOB_MEMORY = 64 * 1024 * 1024;
+    // tasks of all copyTree / deleteTree calls queued or running at once, fits the treeExecutor queue
+    private static final int TREE_TASKS = 64;
+    private static final int MAX_TREE_ERRORS = 100;
+    private static final long TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    // blocking file system calls
+    private final ThreadPoolExecutor ioExecutor = createExecutor("io", 4, 64);
+    // hashing and crypto
+    private final ThreadPoolExecutor cpuExecutor = createExecutor("cpu", CPU_COUNT, 64);
+    // image decoding, only as many in parallel as a quarter of the heap allows
+    private final ThreadPoolExecutor imageExecutor = createExecutor(
+        "image",
+        (int) Math.max(1, Math.min(CPU_COUNT, Runtime.getRuntime().maxMemory() / 4 / IMAGE_JOB_MEMORY)),
+        16
+    );
+    // per file tasks of copyTree / deleteTree
+    private final ThreadPoolExecutor treeExecutor = createExecutor("tree", 4, TREE_TASKS);
+    private final Semaphore treeSlots = new Semaphore(TREE_TASKS);
+    // chunk hashing for getTreeHash, created on first use
+    private ForkJoinPool treeHashPool;
+
+    /**
+     * mutable bitmaps kept for reuse as decode target (inBitmap) or canvas, bucketed by allocation size.
+     * bitmaps can only be resized in place from kitkat on, before that everything is recycled.
+     */
+    private static final class BitmapPool {
+        private final TreeMap<Integer, ArrayDeque<Bitmap>> buckets = new TreeMap<>();
+        // oldest first, for eviction
+        private final LinkedHashSet<Bitmap> order = new LinkedHashSet<>();
+        private long maxBytes;
+        private long bytes;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        BitmapPool(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        private Bitmap take(long byteCount) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || byteCount > Integer.MAX_VALUE) {
+                return null;
+            }
+            // do not tie up bitmaps much larger than needed
+            Map.Entry<Integer, ArrayDeque<Bitmap>> entry = buckets.ceilingEntry((int) byteCount);
+            if (entry == null || entry.getKey() > byteCount * 2) {
+                return null;
+            }
+            Bitmap bmp = entry.getValue().pollLast();
+            if (entry.getValue().isEmpty()) {
+                buckets.remove(entry.getKey());
+            }
+            order.remove(bmp);
+            bytes -= entry.getKey();
+            return bmp;
+        }
+
+        /**
+         * a cleared bitmap of exactly this size, from the pool if possible.
+         */
+        synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+            Bitmap bmp = take((long) width * height * getBytesPerPixel(config));
+            if (bmp != null) {
+                try {
+                    bmp.reconfigure(width, height, config);
+                    bmp.eraseColor(0);
+                    hits++;
+                    return bmp;
+                } catch (IllegalArgumentException e) {
+                    bmp.recycle();
+                }
+            }
+            misses++;
+            return Bitmap.createBitmap(width, height, config);
+        }
+
+        /**
+         * a bitmap with room for byteCount to be used as BitmapFactory.Options.inBitmap, null if there is none.
+         */
+        synchronized Bitmap getForDecode(long byteCount) {
+            Bitmap bmp = take(byteCount);
+            if (bmp != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+            return bmp;
+        }
+
+        synchronized void put(Bitmap bmp) {
+            if (bmp == null || bmp.isRecycled() || order.contains(bmp)) {
+                return;
+            }
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || !bmp.isMutable() || bmp.getAllocationByteCount() > maxBytes) {
+                bmp.recycle();
+                return;
+            }
+            int size = bmp.getAllocationByteCount();
+            ArrayDeque<Bitmap> bucket = buckets.get(size);
+            if (bucket == null) {
+                bucket = new ArrayDeque<>();
+                buckets.put(size, bucket);
+            }
+            bucket.addLast(bmp);
+            order.add(bmp);
+            bytes += size;
+            trim();
+        }
+
+        private void trim() {
+            Iterator<Bitmap> it = order.iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Bitmap bmp = it.next();
+                it.remove();
+                int size = bmp.getAllocationByteCount();
+                ArrayDeque<Bitmap> bucket = buckets.get(size);
+                if (bucket != null) {
+                    bucket.remove(bmp);
+                    if (bucket.isEmpty()) {
+                        buckets.remove(size);
+                    }
+                }
+                bytes -= size;
+                evictions++;
+                bmp.recycle();
+            }
+        }
+
+        synchronized void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            trim();
+        }
+
+        synchronized void clear() {
+            setMaxBytes(0);
+        }
+
+        synchronized void getStats(WritableMap res) {
+            res.putDouble("bitmapHits", hits);
+            res.putDouble("bitmapMisses", misses);
+            res.putDouble("bitmapEvictions", evictions);
+            res.putDouble("bitmapCount", order.size());
+            res.putDouble("bitmapBytes", bytes);
+            res.putDouble("maxBitmapBytes", maxBytes);
+        }
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        return 4;
+    }
+
+    private static Bitmap.Config getConfig(Bitmap bmp) {
+        Bitmap.Config config = bmp.getConfig();
+        return (config != null) ? config : Bitmap.Config.ARGB_8888;
+    }
+
+    /**
+     * ByteArrayOutputStream that keeps its grown buffer when reset.
+     */
+    private static final class EncodeBuffer extends ByteArrayOutputStream {
+        EncodeBuffer(int size) {
+            super(size);
+        }
+
+        int getCapacity() {
+            return buf.length;
+        }
+    }
+
+    private static final class EncodeBufferPool {
+        private final ArrayDeque<EncodeBuffer> buffers = new ArrayDeque<>();
+        private long maxBytes;
+        private long bytes;
+        private long hits;
+        private long misses;
+
+        EncodeBufferPool(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized EncodeBuffer get() {
+            EncodeBuffer buffer = buffers.pollLast();
+            if (buffer != null) {
+                bytes -= buffer.getCapacity();
+                hits++;
+                return buffer;
+            }
+            misses++;
+            return new EncodeBuffer(256 * 1024);
+        }
+
+        synchronized void put(EncodeBuffer buffer) {
+            buffer.reset();
+            if (buffer.getCapacity() > maxBytes) {
+                return;
+            }
+            buffers.addLast(buffer);
+            bytes += buffer.getCapacity();
+            trim();
+        }
+
+        private void trim() {
+            while (bytes > maxBytes && !buffers.isEmpty()) {
+                bytes -= buffers.pollFirst().getCapacity();
+            }
+        }
+
+        synchronized void setMaxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            trim();
+        }
+
+        synchronized void getStats(WritableMap res) {
+            res.putDouble("bufferHits", hits);
+            res.putDouble("bufferMisses", misses);
+            res.putDouble("bufferCount", buffers.size());
+            res.putDouble("bufferBytes", bytes);
+            res.putDouble("maxBufferBytes", maxBytes);
+        }
+    }
+
+    private final BitmapPool bitmapPool = new BitmapPool(Math.min(Runtime.getRuntime().maxMemory() / 8, IMAGE_JOB_MEMORY));
+    private final EncodeBufferPool encodeBufferPool = new EncodeBufferPool(16 * 1024 * 1024);
+
+    /**
+     * encoded thumbnails by key, in memory (lru by bytes) and as files in dir (oldest access evicted first).
+     */
+    private static final long THUMBNAIL_TEMP_FILE_AGE = 10 * 1000;
+
+    private static final class ThumbnailCache {
+        private final File dir;
+        private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+        private long maxMemoryBytes;
+        private long memoryBytes;
+        private long maxDiskBytes;
+        // -1 until the directory was scanned
+        private long diskBytes = -1;
+        private long memoryHits;
+        private long diskHits;
+        private long misses;
+
+        ThumbnailCache(File dir, long maxMemoryBytes, long maxDiskBytes) {
+            this.dir = dir;
+            this.maxMemoryBytes = maxMemoryBytes;
+            this.maxDiskBytes = maxDiskBytes;
+        }
+
+        byte[] get(String key) {
+            synchronized (this) {
+                byte[] data = memory.get(key);
+                if (data != null) {
+                    memoryHits++;
+                    return data;
+                }
+            }
+            File file = new File(dir, key);
+            byte[] data = null;
+            if (file.exists()) {
+                try (FileInputStream fis = new FileInputStream(file)) {
+                    data = new byte[(int) file.length()];
+                    if (readFully(fis, data, data.length) != data.length) {
+                        data = null;
+                    }
+                } catch (IOException e) {
+                    data = null;
+                }
+            }
+            synchronized (this) {
+                if (data == null) {
+                    misses++;
+                    return null;
+                }
+                diskHits++;
+                boolean ignore = file.setLastModified(System.currentTimeMillis());
+                putMemory(key, data);
+                return data;
+            }
+        }
+
+        void put(String key, byte[] data) {
+            synchronized (this) {
+                putMemory(key, data);
+            }
+            if (maxDiskBytes <= 0) {
+                return;
+            }
+            File file = new File(dir, key);
+            File tmp = null;
+            try {
+                if (!dir.exists() && !dir.mkdirs()) {
+                    throw new IOException("mkdirs failed");
+                }
+                tmp = File.createTempFile("." + key + ".", ".tmp", dir);
+                try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                    fos.write(data);
+                }
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("rename failed");
+                }
+            } catch (IOException e) {
+                Log.w("ReactNativeMoFs", "thumbnail cache write failed", e);
+                return;
+            } finally {
+                if (tmp != null && tmp.exists()) {
+                    boolean ignore = tmp.delete();
+                }
+            }
+            synchronized (this) {
+                if (diskBytes >= 0) {
+                    diskBytes += data.length;
+                }
+                trimDisk();
+            }
+        }
+
+        private void putMemory(String key, byte[] data) {
+            byte[] old = memory.put(key, data);
+            if (old != null) {
+                memoryBytes -= old.length;
+            }
+            memoryBytes += data.length;
+            trimMemory();
+        }
+
+        private void trimMemory() {
+            Iterator<byte[]> it = memory.values().iterator();
+            while (memoryBytes > maxMemoryBytes && it.hasNext()) {
+                memoryBytes -= it.next().length;
+                it.remove();
+            }
+        }
+
+        private void trimDisk() {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+            if (diskBytes < 0) {
+                diskBytes = 0;
+                for (File file : files) {
+                    diskBytes += file.length();
+                }
+            }
+            if (diskBytes <= maxDiskBytes) {
+                return;
+            }
+            Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+            long now = System.currentTimeMillis();
+            // a bit below the limit so not every put has to list the directory
+            for (File file : files) {
+                if (diskBytes <= maxDiskBytes * 9 / 10) break;
+                // temp file of a put that is still being written
+                if (file.getName().endsWith(".tmp") && now - file.lastModified() < THUMBNAIL_TEMP_FILE_AGE) continue;
+                long length = file.length();
+                if (file.delete()) {
+                    diskBytes -= length;
+                }
+            }
+        }
+
+        synchronized void setLimits(long maxMemoryBytes, long maxDiskBytes) {
+            this.maxMemoryBytes = maxMemoryBytes;
+            this.maxDiskBytes = maxDiskBytes;
+            trimMemory();
+            trimDisk();
+        }
+
+        synchronized void clear() {
+            memory.clear();
+            memoryBytes = 0;
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    boolean ignore = file.delete();
+                }
+            }
+            diskBytes = 0;
+        }
+
+        synchronized void getStats(WritableMap res) {
+            if (diskBytes < 0) {
+                trimDisk();
+            }
+            res.putDouble("memoryHits", memoryHits);
+            res.putDouble("diskHits", diskHits);
+            res.putDouble("misses", misses);
+            long total = memoryHits + diskHits + misses;
+            res.putDouble("hitRate", (total > 0) ? (double) (memoryHits + diskHits) / total : 0);
+            res.putDouble("memoryCount", memory.size());
+            res.putDouble("memoryBytes", memoryBytes);
+            res.putDouble("maxMemoryBytes", maxMemoryBytes);
+            res.putDouble("diskBytes", Math.max(0, diskBytes));
+            res.putDouble("maxDiskBytes", maxDiskBytes);
+        }
+    }
+
+    private ThumbnailCache thumbnailCache;
+
+    private synchronized ThumbnailCache getThumbnailCache() {
+        if (thumbnailCache == null) {
+            thumbnailCache = new ThumbnailCache(
+                new File(getReactApplicationContext().getCacheDir(), "ReactNativeMoFsThumbnails"),
+                Math.min(Runtime.getRuntime().maxMemory() / 32, 8 * 1024 * 1024),
+                64 * 1024 * 1024
+            );
+        }
+        return thumbnailCache;
+    }
+
+    private interface BitmapDecode {
+        Bitmap decode(BitmapFactory.Options options) throws IOException;
+    }
+
+    /**
+     * decode into a pooled bitmap if one is large enough. width and height are before sampling.
+     */
+    private Bitmap decodePooled(BitmapFactory.Options options, int width, int height, BitmapDecode decode) throws IOException {
+        int sampleSize = Math.max(1, options.inSampleSize);
+        long byteCount = (long) ((width + sampleSize - 1) / sampleSize) * ((height + sampleSize - 1) / sampleSize) * 4;
+        options.inMutable = true;
+        options.inBitmap = bitmapPool.getForDecode(byteCount);
+        if (options.inBitmap == null) {
+            return decode.decode(options);
+        }
+        try {
+            Bitmap bmp = decode.decode(options);
+            if (bmp != null) {
+                return bmp;
+            }
+        } catch (IllegalArgumentException e) {
+            // decoded config does not fit into inBitmap
+        }
+        bitmapPool.put(options.inBitmap);
+        options.inBitmap = null;
+        return decode.decode(options);
+    }
+
+    private static final class ReadStream {
+        final FileInputStream fis;
+        final byte[] buffer;
+        final String path;
+
+        ReadStream(FileInputStream fis, int chunkSize, String path) {
+            this.fis = fis;
+            this.buffer = new byte[chunkSize];
+            this.path = path;
+        }
+    }
+
+    private final Map<Integer, ReadStream> readStreams = new ConcurrentHashMap<>();
+    private final AtomicInteger nextStreamId = new AtomicInteger(1);
+
+    private static final class WalkEntry {
+        final File file;
+        /** relative to the walk root */
+        final String path;
+        final int depth;
+        final String type;
+        final long size;
+        final long lastModified;
+        String error;
+
+        WalkEntry(File file, String path, int depth, String type, long size, long lastModified) {
+            this.file = file;
+            this.path = path;
+            this.depth = depth;
+            this.type = type;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * depth first directory walk, returned in pages. only the entries of directories on the current
+     * path are kept, symlinks are not followed.
+     */
+    private static final class DirWalk {
+        final File root;
+        final int maxDepth;
+        final boolean includeStat;
+        final int pageSize;
+        final ArrayDeque<WalkEntry> pending = new ArrayDeque<>();
+        boolean started = false;
+
+        DirWalk(File root, int maxDepth, boolean includeStat, int pageSize) {
+            this.root = root;
+            this.maxDepth = maxDepth;
+            this.includeStat = includeStat;
+            this.pageSize = pageSize;
+        }
+
+        /** next entries, null at the end */
+        List<WalkEntry> readPage() throws IOException {
+            if (!started) {
+                started = true;
+                pending.addAll(listWalkDir(root, "", 1));
+            }
+            if (pending.isEmpty()) return null;
+            List<WalkEntry> page = new ArrayList<>();
+            while (page.size() < pageSize && !pending.isEmpty()) {
+                WalkEntry entry = pending.pollFirst();
+                if (entry.type.equals("directory") && entry.depth < maxDepth) {
+                    try {
+                        List<WalkEntry> children = listWalkDir(entry.file, entry.path + "/", entry.depth + 1);
+                        for (int i = children.size() - 1; i >= 0; i--) {
+                            pending.addFirst(children.get(i));
+                        }
+                    } catch (IOException e) {
+                        entry.error = e.getMessage();
+                    }
+                }
+                page.add(entry);
+            }
+            return page;
+        }
+
+        private List<WalkEntry> listWalkDir(File dir, String prefix, int depth) throws IOException {
+            List<WalkEntry> res = new ArrayList<>();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.toPath())) {
+                    for (Path child : stream) {
+                        BasicFileAttributes attrs;
+                        try {
+                            attrs = Files.readAttributes(child, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        } catch (NoSuchFileException e) {
+                            continue;
+                        }
+                        String type = attrs.isDirectory() ? "directory" : attrs.isRegularFile() ? "file" : attrs.isSymbolicLink() ? "symlink" : "other";
+                        String name = child.getFileName().toString();
+                        res.add(new WalkEntry(child.toFile(), prefix + name, depth, type, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                    }
+                } catch (DirectoryIteratorException e) {
+                    throw e.getCause();
+                }
+            } else {
+                File[] children = dir.listFiles();
+                if (children == null) throw new IOException("cannot read dir");
+                for (File child : children) {
+                    String type;
+                    if (child.isDirectory()) {
+                        type = isSymlink(child) ? "symlink" : "directory";
+                    } else if (child.isFile()) {
+                        type = "file";
+                    } else if (child.exists()) {
+                        type = "other";
+                    } else {
+                        continue;
+                    }
+                    res.add(new WalkEntry(child, prefix + child.getName(), depth, type, includeStat ? child.length() : 0, includeStat ? child.lastModified() : 0));
+                }
+            }
+            return res;
+        }
+    }
+
+    private static boolean isSymlink(File file) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            return Files.isSymbolicLink(file.toPath());
+        }
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent == null) return false;
+        return !file.getCanonicalFile().equals(new File(parent.getCanonicalFile(), file.getName()));
+    }
+
+    private final Map<Integer, DirWalk> dirWalks = new ConcurrentHashMap<>();
+
+    private interface TransferProgress {
+        void progress(long bytes);
+    }
+
+    /**
+     * copy with FileChannel.transferTo, in chunks to check for cancellation and report progress in between.
+     */
+    private static long transferFile(File from, File to, Operation op, TransferProgress progress) throws IOException {
+        try (FileInputStream fis = new FileInputStream(from); FileOutputStream fos = new FileOutputStream(to)) {
+            FileChannel in = fis.getChannel();
+            FileChannel out = fos.getChannel();
+            long size = in.size();
+            long pos = 0;
+            while (pos < size) {
+                op.check();
+                long res = in.transferTo(pos, Math.min(TRANSFER_CHUNK_SIZE, size - pos), out);
+                if (res <= 0) break;
+                pos += res;
+                if (progress != null) progress.progress(res);
+            }
+            return pos;
+        }
+    }
+
+    /**
+     * copy through a temp file next to to that is renamed over it, so to is either complete or unchanged.
+     */
+    private static long copyFileAtomic(File from, File to, boolean preserveMtime, Operation op, TransferProgress progress) throws IOException {
+        if (!from.isFile()) throw new IOException("not a file");
+        File tempFile = createTempFileFor(to);
+        try {
+            long res = transferFile(from, tempFile, op, progress);
+            if (preserveMtime && !tempFile.setLastModified(from.lastModified())) {
+                Log.w("ReactNativeMoFs", "cannot set lastModified of " + to);
+            }
+            commitTempFile(tempFile, to);
+            return res;
+        } finally {
+            if (tempFile.exists()) {
+                boolean ignore = tempFile.delete();
+            }
+        }
+    }
+
+    private static WritableMap getTransferResult(long bytes, long startNanos) {
+        double duration = (System.nanoTime() - startNanos) / 1e6;
+        WritableMap res = Arguments.createMap();
+        res.putDouble("bytes", bytes);
+        res.putDouble("duration", duration);
+        res.putDouble("bytesPerSecond", duration > 0 ? bytes * 1000 / duration : 0);
+        return res;
+    }
+
+    private interface TreeTask {
+        void run() throws IOException;
+    }
+
+    /**
+     * state of a copyTree / deleteTree. the walk runs on the calling thread, the per file tasks run on
+     * treeExecutor, together with other tree operations at most TREE_TASKS in flight so the queue
+     * never rejects. failed entries are collected, not thrown.
+     */
+    private final class TreeOperation {
+        final Operation op;
+        final AtomicInteger files = new AtomicInteger();
+        final AtomicInteger directories = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        /** bytes to copy or entries to delete, known when walkDone */
+        final AtomicLong total = new AtomicLong();
+        volatile boolean walkDone = false;
+        private final List<String[]> errors = new ArrayList<>();
+        private int errorCount = 0;
+        // submitted tasks not finished yet
+        private int pending = 0;
+
+        TreeOperation(Operation op) {
+            this.op = op;
+        }
+
+        synchronized void error(String path, String message) {
+            errorCount++;
+            if (errors.size() < MAX_TREE_ERRORS) errors.add(new String[] { path, message });
+        }
+
+        synchronized int getErrorCount() {
+            return errorCount;
+        }
+
+        void progress(long done) {
+            op.progress(done, walkDone ? total.get() : -1);
+        }
+
+        void submit(String path, TreeTask task) throws InterruptedException {
+            treeSlots.acquire();
+            synchronized (this) {
+                pending++;
+            }
+            Runnable runnable = () -> {
+                try {
+                    op.check();
+                    task.run();
+                } catch (CancellationException e) {
+                    // op.check() on the walking thread rejects
+                } catch (Exception e) {
+                    error(path, e.getMessage());
+                } finally {
+                    treeSlots.release();
+                    synchronized (this) {
+                        if (--pending == 0) notifyAll();
+                    }
+                }
+            };
+            try {
+                treeExecutor.execute(runnable);
+            } catch (RejectedExecutionException e) {
+                // only after shutdown, the walk is not aborted half way
+                runnable.run();
+            }
+        }
+
+        /** wait for all submitted tasks */
+        synchronized void await() throws InterruptedException {
+            while (pending > 0) wait();
+        }
+
+        synchronized WritableMap toMap() {
+            WritableMap res = Arguments.createMap();
+            res.putInt("files", files.get());
+            res.putInt("directories", directories.get());
+            res.putDouble("bytes", bytes.get());
+            res.putInt("errorCount", errorCount);
+            WritableArray list = Arguments.createArray();
+            for (String[] error : errors) {
+                WritableMap item = Arguments.createMap();
+                item.putString("path", error[0]);
+                item.putString("error", error[1]);
+                list.pushMap(item);
+            }
+            res.putArray("errors", list);
+            return res;
+        }
+    }
+
+    /**
+     * delete file or directory with contents, symlinks are deleted and not followed.
+     * files are deleted in parallel, directories afterwards deepest first.
+     */
+    private TreeOperation deleteTree(File root, Operation op) throws IOException, InterruptedException {
+        TreeOperation tree = new TreeOperation(op);
+        if (isSymlink(root) || !root.isDirectory()) {
+            if (!root.delete()) throw new IOException(root.exists() ? "cannot delete" : "not found");
+            tree.files.incrementAndGet();
+            return tree;
+        }
+        DirWalk walk = new DirWalk(root, Integer.MAX_VALUE, false, 256);
+        List<WalkEntry> dirs = new ArrayList<>();
+        try {
+            List<WalkEntry> page;
+            while ((page = walk.readPage()) != null) {
+                for (WalkEntry entry : page) {
+                    op.check();
+                    if (entry.error != null) tree.error(entry.path, entry.error);
+                    tree.total.incrementAndGet();
+                    if (entry.type.equals("directory")) {
+                        dirs.add(entry);
+                        continue;
+                    }
+                    tree.submit(entry.path, () -> {
+                        if (!entry.file.delete()) throw new IOException("cannot delete");
+                        tree.progress(tree.files.incrementAndGet());
+                    });
+                }
+            }
+        } finally {
+            tree.await();
+        }
+        tree.total.incrementAndGet();
+        tree.walkDone = true;
+        op.check();
+        for (int i = dirs.size() - 1; i >= 0; i--) {
+            WalkEntry entry = dirs.get(i);
+            if (entry.file.delete()) {
+                tree.directories.incrementAndGet();
+            } else {
+                tree.error(entry.path, "cannot delete");
+            }
+            tree.progress(tree.files.get() + dirs.size() - i);
+        }
+        if (root.delete()) {
+            tree.directories.incrementAndGet();
+        } else {
+            tree.error("", "cannot delete");
+        }
+        tree.progress(tree.total.get());
+        return tree;
+    }
+
+    /**
+     * copy the contents of directory from into to. directories are created while walking, files are
+     * copied in parallel through temp files. symlinks and special files are reported as errors.
+     */
+    private TreeOperation copyTree(File from, File to, boolean overwrite, Operation op) throws IOException, InterruptedException {
+        if (!from.isDirectory()) throw new IOException("not a directory");
+        if (to.exists() && !to.isDirectory()) throw new IOException("target is not a directory");
+        if ((to.getCanonicalPath() + "/").startsWith(from.getCanonicalPath() + "/")) {
+            throw new IOException("cannot copy into itself");
+        }
+        if (!to.isDirectory() && !to.mkdirs()) throw new IOException("cannot mkdirs");
+        TreeOperation tree = new TreeOperation(op);
+        DirWalk walk = new DirWalk(from, Integer.MAX_VALUE, true, 256);
+        try {
+            List<WalkEntry> page;
+            while ((page = walk.readPage()) != null) {
+                for (WalkEntry entry : page) {
+                    op.check();
+                    File target = new File(to, entry.path);
+                    if (entry.error != null) tree.error(entry.path, entry.error);
+                    if (entry.type.equals("directory")) {
+                        if (target.isDirectory() || target.mkdir()) {
+                            tree.directories.incrementAndGet();
+                        } else {
+                            tree.error(entry.path, "cannot mkdir");
+                        }
+                    } else if (entry.type.equals("file")) {
+                        tree.total.addAndGet(entry.size);
+                        tree.submit(entry.path, () -> {
+                            if (!overwrite && target.exists()) throw new IOException("exists");
+                            copyFileAtomic(entry.file, target, false, op, (n) -> tree.progress(tree.bytes.addAndGet(n)));
+                            tree.files.incrementAndGet();
+                        });
+                    } else {
+                        tree.error(entry.path, "unsupported file type");
+                    }
+                }
+            }
+        } finally {
+            tree.await();
+        }
+        tree.walkDone = true;
+        op.check();
+        tree.progress(tree.bytes.get());
+        return tree;
+    }
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final long PROGRESS_INTERVAL = 100;
+    // aes-gcm decryption buffers the whole file in memory
+    private static final long MAX_GCM_DECRYPT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * a long running call. if started with a requestId it can be cancelled with cancel(requestId)
+     * and emits ReactNativeMoFsProgress events.
+     */
+    private final class Operation {
+        final String requestId;
+        volatile boolean cancelled = false;
+        private long lastProgress = 0;
+        private double lastDone = 0;
+
+        Operation(String requestId) {
+            this.requestId = requestId;
+        }
+
+        void check() {
+            if (cancelled) throw new CancellationException("cancelled");
+        }
+
+        /**
+         * check for cancellation and emit a progress event, at most every PROGRESS_INTERVAL ms.
+         * total is negative if unknown. done never goes backwards, parallel parts may report out of order.
+         */
+        synchronized void progress(double done, double total) {
+            check();
+            if (requestId == null) return;
+            done = Math.max(done, lastDone);
+            lastDone = done;
+            long now = System.currentTimeMillis();
+            if (done != total && now - lastProgress < PROGRESS_INTERVAL) return;
+            lastProgress = now;
+            WritableMap event = Arguments.createMap();
+            event.putString("requestId", requestId);
+            event.putDouble("done", done);
+            if (total >= 0) event.putDouble("total", total);
+            getReactApplicationContext().getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(
+                    "ReactNativeMoFsProgress",
+                    event
+            );
+        }
+    }
+
+    private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+
+    private static final int CHANNEL_CACHE_SIZE = 8;
+
+    /**
+     * a channel in channelCache. the cache holds one reference, readers hold one while they read,
+     * the channel is closed when the last one is released.
+     */
+    private static final class CachedChannel {
+        final FileChannel channel;
+        private int refs = 1;
+
+        CachedChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        synchronized void acquire() {
+            refs++;
+        }
+
+        synchronized void release() {
+            if (--refs == 0) closeChannel(channel);
+        }
+    }
+
+    // access ordered, so the eldest entry is the least recently used channel
+    private final LinkedHashMap<String, CachedChannel> channelCache = new LinkedHashMap<String, CachedChannel>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedChannel> eldest) {
+            if (size() <= CHANNEL_CACHE_SIZE) return false;
+            eldest.getValue().release();
+            return true;
+        }
+    };
+
+    private static final class FileHandle {
+        final RandomAccessFile raf;
+        final String path;
+        final boolean append;
+        volatile long lastUsed;
+
+        FileHandle(RandomAccessFile raf, String path, boolean append) {
+            this.raf = raf;
+            this.path = path;
+            this.append = append;
+            this.lastUsed = System.currentTimeMillis();
+        }
+    }
+
+    private static final long FILE_HANDLE_IDLE_TIMEOUT = 5 * 60 * 1000;
+
+    private final Map<Integer, FileHandle> fileHandles = new ConcurrentHashMap<>();
+
+    private static final class AppendStream {
+        final FileOutputStream fos;
+        final String path;
+        final byte[] buffer;
+        final long flushInterval;
+        final boolean fsync;
+        int buffered = 0;
+        long bytesWritten = 0;
+        int flushCount = 0;
+        double lastFlushLatency = 0;
+        double maxFlushLatency = 0;
+        ScheduledFuture<?> pendingFlush;
+        IOException error;
+
+        AppendStream(FileOutputStream fos, String path, int bufferSize, long flushInterval, boolean fsync) {
+            this.fos = fos;
+            this.path = path;
+            this.buffer = new byte[bufferSize];
+            this.flushInterval = flushInterval;
+            this.fsync = fsync;
+        }
+
+        // callers need to hold the lock on this
+        void flush(boolean fsync) throws IOException {
+            if (pendingFlush != null) {
+                pendingFlush.cancel(false);
+                pendingFlush = null;
+            }
+            if (buffered == 0 && !fsync) return;
+            long start = System.nanoTime();
+            if (buffered > 0) {
+                fos.write(buffer, 0, buffered);
+                bytesWritten += buffered;
+                buffered = 0;
+            }
+            if (fsync) fos.getFD().sync();
+            lastFlushLatency = (System.nanoTime() - start) / 1e6;
+            maxFlushLatency = Math.max(maxFlushLatency, lastFlushLatency);
+            flushCount++;
+        }
+
+        /** rethrow the error of a scheduled flush, once. callers need to hold the lock on this */
+        void checkError() throws IOException {
+            if (error == null) return;
+            IOException res = error;
+            error = null;
+            throw res;
+        }
+
+        // callers need to hold the lock on this
+        void write(byte[] data) throws IOException {
+            if (buffered + data.length > buffer.length) {
+                flush(fsync);
+            }
+            if (data.length >= buffer.length) {
+                fos.write(data);
+                bytesWritten += data.length;
+                return;
+            }
+            System.arraycopy(data, 0, buffer, buffered, data.length);
+            buffered += data.length;
+            if (buffered == buffer.length) {
+                flush(fsync);
+            }
+        }
+
+        WritableMap getStats() {
+            WritableMap res = Arguments.createMap();
+            res.putDouble("bytesWritten", bytesWritten);
+            res.putDouble("bytesBuffered", buffered);
+            res.putDouble("flushCount", flushCount);
+            res.putDouble("lastFlushLatency", lastFlushLatency);
+            res.putDouble("maxFlushLatency", maxFlushLatency);
+            return res;
+        }
+    }
+
+    private final Map<Integer, AppendStream> appendStreams = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
 
     ReactNativeMoFs(@Nonnull ReactApplicationContext reactContext) {
         super(reactContext);
 
-        reactContext.addActivityEventListener(new ActivityEventListener() {
-            @Override
-            public void onActivityResult(Activity activity, int requestCode, int resultCode, Intent data) {
+        reactContext.addActivityEventListener(new ActivityEventListener() {
+            @Override
+            public void onActivityResult(Activity activity, int requestCode, int resultCode, Intent data) {
+            }
+
+            @Override
+            public void onNewIntent(Intent intent) {
+                if (verbose) Log.i("ReactNativeMoFs", "onNewIntent " + intent);
+                getReactApplicationContext().getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(
+                        "ReactNativeMoFsNewIntent",
+                        getMapFromIntent(intent)
+                );
+            }
+        });
+    }
+
+    @Override
+    public @Nonnull
+    String getName() {
+        return "ReactNativeMoFs";
+    }
+
+    @Override
+    public Map<String, Object> getConstants() {
+        HashMap<String, Object> res = new HashMap<>();
+        res.put("authorities", getProviderAuthority());
+        HashMap<String, String> paths = new HashMap<>();
+        if (getReactApplicationContext().getExternalCacheDir() != null) {
+            paths.put("externalCache", getReactApplicationContext().getExternalCacheDir().getAbsolutePath());
+        }
+        paths.put("cache", getReactApplicationContext().getCacheDir().getAbsolutePath());
+        paths.put("files", getReactApplicationContext().getFilesDir().getAbsolutePath());
+        paths.put("packageResource", getReactApplicationContext().getPackageResourcePath());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            paths.put("data", getReactApplicationContext().getDataDir().getAbsolutePath());
+        }
+        res.put("paths", paths);
+        return res;
+    }
+
+    private static ThreadPoolExecutor createExecutor(String name, int threads, int queueSize) {
+        AtomicInteger threadCount = new AtomicInteger(1);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            threads, threads, 30, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueSize),
+            (runnable) -> new Thread(runnable, "ReactNativeMoFs-" + name + "-" + threadCount.getAndIncrement())
+        );
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * run task on executor. rejects with EBUSY if the queue of the executor is full.
+     */
+    private boolean execute(ThreadPoolExecutor executor, Promise promise, Runnable task) {
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    promise.reject(e);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            promise.reject("EBUSY", "too many pending operations", e);
+            return false;
+        }
+    }
+
+    /**
+     * run task on executor as operation op. rejects with ECANCELLED if the operation was cancelled.
+     */
+    private void execute(ThreadPoolExecutor executor, Promise promise, Operation op, Runnable task) {
+        boolean submitted = execute(executor, promise, () -> {
+            try {
+                op.check();
+                task.run();
+            } catch (CancellationException e) {
+                promise.reject("ECANCELLED", e.getMessage(), e);
+            } finally {
+                if (op.requestId != null) operations.remove(op.requestId, op);
+            }
+        });
+        if (!submitted && op.requestId != null) operations.remove(op.requestId, op);
+    }
+
+    /**
+     * a call on a stream or file handle. calls for the same id run one after another in the order they were made.
+     */
+    private final class SerialTask implements Runnable {
+        final int id;
+        final Promise promise;
+        final Runnable task;
+
+        SerialTask(int id, Promise promise, Runnable task) {
+            this.id = id;
+            this.promise = promise;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            try {
+                task.run();
+            } catch (Exception e) {
+                promise.reject(e);
+            } finally {
+                runNextSerial(id);
+            }
+        }
+    }
+
+    // pending calls per stream, handle or walk id, present while a call for the id is running
+    private final Map<Integer, ArrayDeque<SerialTask>> serialQueues = new HashMap<>();
+
+    /**
+     * run task on ioExecutor after all earlier tasks for the same stream, handle or walk id.
+     */
+    private void executeSerial(int id, Promise promise, Runnable task) {
+        SerialTask serial = new SerialTask(id, promise, task);
+        synchronized (serialQueues) {
+            ArrayDeque<SerialTask> queue = serialQueues.get(id);
+            if (queue != null) {
+                queue.add(serial);
+                return;
+            }
+            serialQueues.put(id, new ArrayDeque<>());
+        }
+        if (!execute(ioExecutor, promise, serial)) runNextSerial(id);
+    }
+
+    private void runNextSerial(int id) {
+        SerialTask next;
+        synchronized (serialQueues) {
+            ArrayDeque<SerialTask> queue = serialQueues.get(id);
+            next = (queue != null) ? queue.poll() : null;
+            if (next == null) {
+                serialQueues.remove(id);
+                return;
+            }
+        }
+        if (!execute(ioExecutor, next.promise, next)) runNextSerial(id);
+    }
+
+    private Operation startOperation(ReadableMap options) {
+        String requestId = (options != null && options.hasKey("requestId")) ? options.getString("requestId") : null;
+        Operation op = new Operation(requestId);
+        if (requestId != null) operations.put(requestId, op);
+        return op;
+    }
+
+    @Override
+    public void invalidate() {
+        ioExecutor.shutdownNow();
+        cpuExecutor.shutdownNow();
+        imageExecutor.shutdownNow();
+        treeExecutor.shutdownNow();
+        bitmapPool.clear();
+        encodeBufferPool.setMaxBytes(0);
+        closeCachedChannels(null);
+        synchronized (this) {
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+            if (treeHashPool != null) {
+                treeHashPool.shutdownNow();
+                treeHashPool = null;
+            }
+        }
+        for (Integer id : appendStreams.keySet()) {
+            AppendStream stream = appendStreams.remove(id);
+            if (stream == null) continue;
+            synchronized (stream) {
+                try {
+                    stream.flush(stream.fsync);
+                    stream.fos.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        for (Integer id : fileHandles.keySet()) {
+            closeFileHandle(id);
+        }
+        dirWalks.clear();
+        for (Integer id : readStreams.keySet()) {
+            ReadStream stream = readStreams.remove(id);
+            if (stream == null) continue;
+            try {
+                stream.fis.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        super.invalidate();
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void cancel(String requestId, Promise promise) {
+        Operation op = operations.get(requestId);
+        if (op != null) op.cancelled = true;
+        promise.resolve(op != null);
+    }
+
+    private static int readFully(InputStream is, byte[] buffer, int length) throws IOException {
+        int pos = 0;
+        while (pos < length) {
+            int res = is.read(buffer, pos, length - pos);
+            if (res < 0) break;
+            pos += res;
+        }
+        return pos;
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int pos = 0;
+        while (buffer.hasRemaining()) {
+            int res = channel.read(buffer, position + pos);
+            if (res < 0) break;
+            pos += res;
+        }
+        return pos;
+    }
+
+    private static byte[] readRange(FileChannel channel, ReadableMap args, Operation op) throws IOException {
+        long fileSize = channel.size();
+        long offset = args.hasKey("offset") ? (long) args.getDouble("offset") : 0;
+        if (offset < 0) offset = fileSize + offset + 1;
+        long size = args.hasKey("size") ? (long) args.getDouble("size") : fileSize - offset;
+        if (offset < 0 || size < 0) throw new IOException("invalid range");
+        if (size > Integer.MAX_VALUE) throw new IOException("size too large");
+        byte[] buffer = new byte[(int) size];
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        while (bb.hasRemaining()) {
+            op.progress(bb.position(), buffer.length);
+            int pos = bb.position();
+            bb.limit(Math.min(buffer.length, pos + CHUNK_SIZE));
+            if (readFully(channel, bb, offset + pos) < bb.limit() - pos) break;
+            bb.limit(buffer.length);
+        }
+        if (bb.position() != buffer.length) throw new IOException("incomplete read");
+        op.progress(buffer.length, buffer.length);
+        return buffer;
+    }
+
+    private static void writeChunked(OutputStream os, byte[] data, Operation op) throws IOException {
+        for (int pos = 0; pos < data.length; pos += CHUNK_SIZE) {
+            op.progress(pos, data.length);
+            os.write(data, pos, Math.min(CHUNK_SIZE, data.length - pos));
+        }
+        op.progress(data.length, data.length);
+    }
+
+    private static void closeChannel(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * cached channel for path, acquired for the caller. must be released after use.
+     */
+    private CachedChannel acquireCachedChannel(String path) throws IOException {
+        synchronized (channelCache) {
+            CachedChannel cached = channelCache.get(path);
+            if (cached == null || !cached.channel.isOpen()) {
+                if (cached != null) cached.release();
+                cached = new CachedChannel(new FileInputStream(path).getChannel());
+                channelCache.put(path, cached);
+            }
+            cached.acquire();
+            return cached;
+        }
+    }
+
+    /**
+     * drop cached channels for path and everything below it, or all of them if path is null. channels are
+     * closed once running reads are done. needs to be called whenever a file is modified, replaced or removed.
+     */
+    private void closeCachedChannels(String path) {
+        synchronized (channelCache) {
+            Iterator<Map.Entry<String, CachedChannel>> it = channelCache.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, CachedChannel> entry = it.next();
+                if (path == null || entry.getKey().equals(path) || entry.getKey().startsWith(path + "/")) {
+                    entry.getValue().release();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor();
+            scheduler.scheduleWithFixedDelay(this::closeIdleFileHandles, 1, 1, TimeUnit.MINUTES);
+        }
+        return scheduler;
+    }
+
+    private void closeFileHandle(int id) {
+        FileHandle handle = fileHandles.remove(id);
+        if (handle == null) return;
+        synchronized (handle) {
+            try {
+                handle.raf.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void closeIdleFileHandles() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Integer, FileHandle> entry : fileHandles.entrySet()) {
+            if (now - entry.getValue().lastUsed > FILE_HANDLE_IDLE_TIMEOUT) {
+                if (verbose) Log.i("ReactNativeMoFs", "closing idle file handle " + entry.getKey() + " path=" + entry.getValue().path);
+                closeFileHandle(entry.getKey());
+            }
+        }
+    }
+
+    private FileHandle getFileHandle(int id) throws IOException {
+        FileHandle handle = fileHandles.get(id);
+        if (handle == null) throw new IOException("file handle not found");
+        handle.lastUsed = System.currentTimeMillis();
+        return handle;
+    }
+
+    private static MessageDigest getMessageDigest(String algorithm) throws NoSuchAlgorithmException {
+        switch (algorithm) {
+            case "md5":
+                return MessageDigest.getInstance("MD5");
+            case "sha1":
+                return MessageDigest.getInstance("SHA1");
+            case "sha256":
+                return MessageDigest.getInstance("SHA-256");
+            case "sha512":
+                return MessageDigest.getInstance("SHA-512");
+            default:
+                throw new RuntimeException("invalid algorithm");
+        }
+    }
+
+    private static Mac getMac(String algorithm, String key) throws NoSuchAlgorithmException, InvalidKeyException {
+        byte[] keyData = Base64.decode(key, 0);
+        Mac mac;
+        switch (algorithm) {
+            case "sha1":
+                mac = Mac.getInstance("HmacSHA1");
+                break;
+            case "sha256":
+                mac = Mac.getInstance("HmacSHA256");
+                break;
+            case "sha512":
+                mac = Mac.getInstance("HmacSHA512");
+                break;
+            default:
+                throw new RuntimeException("invalid algorithm");
+        }
+        mac.init(new SecretKeySpec(keyData, mac.getAlgorithm()));
+        return mac;
+    }
+
+    /**
+     * aes-cbc with PKCS5 padding, aes-ctr, or aes-gcm with a 128 bit tag appended to the ciphertext.
+     * note that most providers return the plaintext of aes-gcm only on doFinal when decrypting.
+     */
+    private static Cipher getCipher(String algorithm, boolean encrypt, String key, String iv) throws GeneralSecurityException {
+        byte[] keyData = Base64.decode(key, 0);
+        byte[] ivData = Base64.decode(iv, 0);
+        Cipher cipher;
+        AlgorithmParameterSpec params;
+        switch (algorithm) {
+            case "aes-cbc":
+                cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+                params = new IvParameterSpec(ivData);
+                break;
+            case "aes-ctr":
+                cipher = Cipher.getInstance("AES/CTR/NoPadding");
+                params = new IvParameterSpec(ivData);
+                break;
+            case "aes-gcm":
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) throw new RuntimeException("aes-gcm not supported");
+                cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                params = new GCMParameterSpec(128, ivData);
+                break;
+            default:
+                throw new RuntimeException("invalid algorithm");
+        }
+        cipher.init(
+                encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE,
+                new SecretKeySpec(keyData, "AES"),
+                params
+        );
+        return cipher;
+    }
+
+    /**
+     * temporary file next to file, to be moved over it with commitTempFile.
+     */
+    private static File createTempFileFor(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir == null) throw new IOException("invalid path");
+        return File.createTempFile("." + file.getName() + ".", ".tmp", dir);
+    }
+
+    private static void commitTempFile(File tempFile, File file) throws IOException {
+        if (!tempFile.renameTo(file)) {
+            boolean ignore = tempFile.delete();
+            throw new IOException("cannot rename");
+        }
+    }
+
+    /**
+     * merkle root of the leaf hashes: adjacent pairs are hashed as H(left || right) level by level,
+     * an odd node at the end of a level is carried up unchanged. a single leaf is the root.
+     */
+    private static byte[] getMerkleRoot(String algorithm, byte[][] leaves) throws NoSuchAlgorithmException {
+        byte[][] level = leaves;
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < level.length; i += 2) {
+                if (i + 1 < level.length) {
+                    MessageDigest digest = getMessageDigest(algorithm);
+                    digest.update(level[i]);
+                    digest.update(level[i + 1]);
+                    next[i / 2] = digest.digest();
+                } else {
+                    next[i / 2] = level[i];
+                }
+            }
+            level = next;
+        }
+        return level[0];
+    }
+
+    private interface ChunkConsumer {
+        void accept(byte[] buffer, int length) throws Exception;
+    }
+
+    /**
+     * pass length bytes at offset of channel to consumer in chunks of up to CHUNK_SIZE bytes.
+     * the buffer is reused between calls.
+     */
+    private static void streamChannel(FileChannel channel, long offset, long length, Operation op, ChunkConsumer consumer) throws Exception {
+        byte[] buffer = new byte[(int) Math.min(CHUNK_SIZE, Math.max(length, 1))];
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+        long done = 0;
+        while (done < length) {
+            op.progress(done, length);
+            bb.clear();
+            bb.limit((int) Math.min(buffer.length, length - done));
+            int res = readFully(channel, bb, offset + done);
+            if (res < bb.limit()) throw new IOException("incomplete read");
+            consumer.accept(buffer, res);
+            done += res;
+        }
+        op.progress(length, length);
+    }
+
+    /**
+     * several digests and hmacs calculated over the same data.
+     */
+    private static final class MultiHash {
+        final ArrayList<String> names = new ArrayList<>();
+        final ArrayList<MessageDigest> digests = new ArrayList<>();
+        final ArrayList<Mac> macs = new ArrayList<>();
+
+        MultiHash(ReadableArray algorithms) throws NoSuchAlgorithmException, InvalidKeyException {
+            // names of all digests first, then all macs
+            ArrayList<String> macNames = new ArrayList<>();
+            for (int i = 0; i < algorithms.size(); i++) {
+                ReadableMap item = Objects.requireNonNull(algorithms.getMap(i));
+                String algorithm = Objects.requireNonNull(item.getString("algorithm"));
+                boolean hmac = item.hasKey("key") && !item.isNull("key");
+                String name = item.hasKey("name") ? item.getString("name") : (hmac ? "hmac-" + algorithm : algorithm);
+                if (hmac) {
+                    macs.add(getMac(algorithm, item.getString("key")));
+                    macNames.add(name);
+                } else {
+                    digests.add(getMessageDigest(algorithm));
+                    names.add(name);
+                }
+            }
+            names.addAll(macNames);
+        }
+
+        void update(byte[] data, int offset, int length) {
+            for (MessageDigest digest : digests) digest.update(data, offset, length);
+            for (Mac mac : macs) mac.update(data, offset, length);
+        }
+
+        WritableMap getResult() {
+            WritableMap res = Arguments.createMap();
+            int i = 0;
+            for (MessageDigest digest : digests) res.putString(names.get(i++), getHexFromBytes(digest.digest()));
+            for (Mac mac : macs) res.putString(names.get(i++), getHexFromBytes(mac.doFinal()));
+            return res;
+        }
+    }
+
+    private static String getHexFromBytes(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length * 2);
+        for (byte b : data) sb.append(String.format("%02x", b & 0xFF));
+        return sb.toString();
+    }
+
+    private WritableMap getMapFromIntent(Intent intent) {
+        WritableMap res = Arguments.createMap();
+        res.putString("action", intent.getAction());
+        res.putString("type", intent.getType());
+        if (intent.getData() != null) res.putString("data", intent.getData().toString());
+        Bundle extras = intent.getExtras();
+        if (extras != null) {
+            WritableMap resExtras = Arguments.createMap();
+            for (String key : extras.keySet()) {
+                Object val = extras.get(key);
+                if (val instanceof String) {
+                    resExtras.putString(key, (String) val);
+                } else if (val instanceof Uri) {
+                    resExtras.putString(key, val.toString());
+                } else if (val instanceof Number) {
+                    resExtras.putDouble(key, ((Number) val).doubleValue());
+                } else if (val instanceof Boolean) {
+                    resExtras.putBoolean(key, (Boolean) val);
+                } else if (val == null) {
+                    resExtras.putNull(key);
+                }
+            }
+            res.putMap("extras", resExtras);
+        }
+        return res;
+    }
+
+    private String getMimeTypePath(String path) {
+        String[] tmp = path.split("\\.");
+        return MimeTypeMap.getSingleton().getMimeTypeFromExtension(tmp[tmp.length - 1]);
+    }
+
+    private String getProviderAuthority() {
+        return getReactApplicationContext().getPackageName() + ".ReactNativeMoFs";
+    }
+
+    private String getFileProviderAuthority() {
+        return getReactApplicationContext().getPackageName() + ".ReactNativeMoFsFile";
+    }
+
+    private Uri getUriForPath(String path) {
+        return FileProvider.getUriForFile(
+            getReactApplicationContext(),
+            getFileProviderAuthority(),
+            new File(path)
+        );
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void getInitialIntent(final Promise promise) {
+        final LifecycleEventListener lifecycleEventListener = new LifecycleEventListener() {
+            @Override
+            public void onHostResume() {
+                getReactApplicationContext().removeLifecycleEventListener(this);
+                Activity activity = getReactApplicationContext().getCurrentActivity();
+                if (activity != null) {
+                    Intent intent = activity.getIntent();
+                    promise.resolve(getMapFromIntent(intent));
+                } else {
+                    promise.resolve(null);
+                }
+            }
+
+            @Override
+            public void onHostPause() {
+            }
+
+            @Override
+            public void onHostDestroy() {
+            }
+        };
+        Activity activity = getReactApplicationContext().getCurrentActivity();
+        if (activity != null) {
+            lifecycleEventListener.onHostResume();
+        } else {
+            getReactApplicationContext().addLifecycleEventListener(lifecycleEventListener);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void getMimeTypeForPath(String path, Promise promise) {
+        promise.resolve(getMimeTypePath(path));
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void getExtensionForMimeType(String mimeType, Promise promise) {
+        promise.resolve(MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType));
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void readBlob(ReadableMap blob, String mode, Promise promise) {
+        execute(ioExecutor, promise, () -> {
+            BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+            byte[] data = blobModule.resolve(blob);
+            if (data == null) {
+                promise.reject(new Error("blob not found"));
+                return;
+            }
+            if (verbose) Log.i("ReactNativeMoFs", "readBlob size=" + data.length);
+            if (mode.equals("base64")) {
+                promise.resolve(Base64.encodeToString(data, Base64.NO_WRAP));
+            } else if (mode.equals("utf8")) {
+                promise.resolve(new String(data));
+            } else {
+                promise.reject(new Error("unknown mode"));
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void createBlob(String str, String mode, Promise promise) {
+        execute(ioExecutor, promise, () -> {
+            BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+            byte[] buffer;
+            if (mode.equals("base64")) {
+                buffer = Base64.decode(str, 0);
+            } else if (mode.equals("utf8")) {
+                buffer = str.getBytes();
+            } else {
+                promise.reject(new Error("unknown mode"));
+                return;
+            }
+            String blobId = blobModule.store(buffer);
+            if (verbose)
+                Log.i("ReactNativeMoFs", "createBlob size=" + buffer.length + " blobId=" + blobId);
+            WritableMap blob = Arguments.createMap();
+            blob.putInt("size", buffer.length);
+            blob.putInt("offset", 0);
+            blob.putString("blobId", blobId);
+            promise.resolve(blob);
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void readFile(ReadableMap args, Promise promise) {
+        Operation op = startOperation(args);
+        execute(ioExecutor, promise, op, () -> {
+            BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+            try {
+                String path = Objects.requireNonNull(args.getString("path"));
+                boolean cached = args.hasKey("cached") && args.getBoolean("cached");
+                byte[] buffer;
+                if (cached) {
+                    CachedChannel cachedChannel = acquireCachedChannel(path);
+                    try {
+                        buffer = readRange(cachedChannel.channel, args, op);
+                    } finally {
+                        cachedChannel.release();
+                    }
+                } else {
+                    try (FileChannel channel = new FileInputStream(path).getChannel()) {
+                        buffer = readRange(channel, args, op);
+                    }
+                }
+                String blobId = blobModule.store(buffer);
+                WritableMap blob = Arguments.createMap();
+                blob.putInt("size", buffer.length);
+                blob.putInt("offset", 0);
+                blob.putString("blobId", blobId);
+                blob.putString("type", "application/octet-string");
+                blob.putString("name", path); // only last?
+                promise.resolve(blob);
+            } catch (IOException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void closeFileCache(Promise promise) {
+        closeCachedChannels(null);
+        promise.resolve(null);
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void openReadStream(ReadableMap args, Promise promise) {
+        execute(ioExecutor, promise, () -> {
+            try {
+                String path = Objects.requireNonNull(args.getString("path"));
+                int chunkSize = args.hasKey("chunkSize") ? args.getInt("chunkSize") : 1024 * 1024;
+                if (chunkSize <= 0) throw new IOException("invalid chunkSize");
+                File file = new File(path);
+                long offset = args.hasKey("offset") ? (long) args.getDouble("offset") : 0;
+                if (offset < 0) offset = file.length() + offset + 1;
+                FileInputStream fis = new FileInputStream(file);
+                try {
+                    if (offset > 0 && fis.getChannel().position(offset).position() != offset) {
+                        throw new IOException("seek failed");
+                    }
+                } catch (IOException e) {
+                    fis.close();
+                    throw e;
+                }
+                int id = nextStreamId.getAndIncrement();
+                readStreams.put(id, new ReadStream(fis, chunkSize, path));
+                if (verbose) Log.i("ReactNativeMoFs", "openReadStream id=" + id + " path=" + path + " chunkSize=" + chunkSize);
+                promise.resolve(id);
+            } catch (IOException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void readStream(int id, Promise promise) {
+        executeSerial(id, promise, () -> {
+            try {
+                ReadStream stream = readStreams.get(id);
+                if (stream == null) throw new IOException("stream not found");
+                BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+                int res;
+                byte[] data;
+                synchronized (stream) {
+                    res = readFully(stream.fis, stream.buffer, stream.buffer.length);
+                    data = (res > 0) ? Arrays.copyOf(stream.buffer, res) : null;
+                }
+                if (data == null) {
+                    promise.resolve(null);
+                    return;
+                }
+                String blobId = blobModule.store(data);
+                WritableMap blob = Arguments.createMap();
+                blob.putInt("size", data.length);
+                blob.putInt("offset", 0);
+                blob.putString("blobId", blobId);
+                blob.putString("type", "application/octet-string");
+                blob.putString("name", stream.path);
+                promise.resolve(blob);
+            } catch (IOException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void closeReadStream(int id, Promise promise) {
+        executeSerial(id, promise, () -> {
+            try {
+                ReadStream stream = readStreams.remove(id);
+                if (stream == null) throw new IOException("stream not found");
+                stream.fis.close();
+                promise.resolve(null);
+            } catch (IOException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void openFile(String path, String mode, Promise promise) {
+        execute(ioExecutor, promise, () -> {
+            try {
+                RandomAccessFile raf;
+                switch (mode) {
+                    case "r":
+                        raf = new RandomAccessFile(path, "r");
+                        break;
+                    case "w":
+                        raf = new RandomAccessFile(path, "rw");
+                        raf.setLength(0);
+                        break;
+                    case "a":
+                        raf = new RandomAccessFile(path, "rw");
+                        raf.seek(raf.length());
+                        break;
+                    case "rw":
+                        raf = new RandomAccessFile(path, "rw");
+                        break;
+                    default:
+                        throw new IOException("invalid mode");
+                }
+                int id = nextStreamId.getAndIncrement();
+                fileHandles.put(id, new FileHandle(raf, path, mode.equals("a")));
+                getScheduler();
+                if (verbose) Log.i("ReactNativeMoFs", "openFile id=" + id + " path=" + path + " mode=" + mode);
+                promise.resolve(id);
+            } catch (IOException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void readHandle(int id, ReadableMap args, Promise promise) {
+        executeSerial(id, promise, () -> {
+            try {
+                FileHandle handle = getFileHandle(id);
+                BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+                int size = args.getInt("size");
+                if (size < 0) throw new IOException("invalid size");
+                byte[] buffer = new byte[size];
+                int res;
+                synchronized (handle) {
+                    if (args.hasKey("offset")) {
+                        res = readFully(handle.raf.getChannel(), ByteBuffer.wrap(buffer), (long) args.getDouble("offset"));
+                    } else {
+                        res = readFully(Channels.newInputStream(handle.raf.getChannel()), buffer, size);
+                    }
+                }
+                if (res <= 0 && size > 0) {
+                    promise.resolve(null);
+                    return;
+                }
+                byte[] data = (res == size) ? buffer : Arrays.copyOf(buffer, res);
+                String blobId = blobModule.store(data);
+                WritableMap blob = Arguments.createMap();
+                blob.putInt("size", data.length);
+                blob.putInt("offset", 0);
+                blob.putString("blobId", blobId);
+                blob.putString("type", "application/octet-string");
+                blob.putString("name", handle.path);
+                promise.resolve(blob);
+            } catch (IOException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void writeHandle(int id, ReadableMap args, Promise promise) {
+        executeSerial(id, promise, () -> {
+            try {
+                FileHandle handle = getFileHandle(id);
+                BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+                ReadableMap blob = Objects.requireNonNull(args.getMap("blob"));
+                byte[] data = blobModule.resolve(blob);
+                if (data == null) {
+                    promise.reject(new Error("blob not found"));
+                    return;
+                }
+                synchronized (handle) {
+                    if (handle.append) {
+                        handle.raf.seek(handle.raf.length());
+                    } else if (args.hasKey("offset")) {
+                        long offset = (long) args.getDouble("offset");
+                        if (offset < 0) offset = handle.raf.length() + offset + 1;
+                        handle.raf.seek(offset);
+                    }
+                    handle.raf.write(data);
+                }
+                promise.resolve(null);
+            } catch (IOException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void fsyncHandle(int id, Promise promise) {
+        executeSerial(id, promise, () -> {
+            try {
+                FileHandle handle = getFileHandle(id);
+                synchronized (handle) {
+                    handle.raf.getFD().sync();
+                }
+                promise.resolve(null);
+            } catch (IOException e) {
+                promise.reject(e);
             }
+        });
+    }
 
-            @Override
-            public void onNewIntent(Intent intent) {
-                if (verbose) Log.i("ReactNativeMoFs", "onNewIntent " + intent);
-                getReactApplicationContext().getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(
-                        "ReactNativeMoFsNewIntent",
-                        getMapFromIntent(intent)
-                );
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void closeHandle(int id, Promise promise) {
+        executeSerial(id, promise, () -> {
+            try {
+                FileHandle handle = fileHandles.remove(id);
+                if (handle == null) throw new IOException("file handle not found");
+                synchronized (handle) {
+                    handle.raf.close();
+                }
+                promise.resolve(null);
+            } catch (IOException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void openAppendStream(ReadableMap args, Promise promise) {
+        execute(ioExecutor, promise, () -> {
+            try {
+                String path = Objects.requireNonNull(args.getString("path"));
+                int bufferSize = args.hasKey("bufferSize") ? args.getInt("bufferSize") : 64 * 1024;
+                long flushInterval = args.hasKey("flushInterval") ? (long) args.getDouble("flushInterval") : 1000;
+                boolean fsync = args.hasKey("fsync") && args.getBoolean("fsync");
+                if (bufferSize <= 0) throw new IOException("invalid bufferSize");
+                int id = nextStreamId.getAndIncrement();
+                appendStreams.put(id, new AppendStream(new FileOutputStream(path, true), path, bufferSize, flushInterval, fsync));
+                if (verbose) Log.i("ReactNativeMoFs", "openAppendStream id=" + id + " path=" + path + " bufferSize=" + bufferSize);
+                promise.resolve(id);
+            } catch (IOException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void appendStream(int id, ReadableMap args, Promise promise) {
+        executeSerial(id, promise, () -> {
+            try {
+                AppendStream stream = appendStreams.get(id);
+                if (stream == null) throw new IOException("stream not found");
+                byte[] data;
+                if (args.hasKey("blob")) {
+                    BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+                    data = blobModule.resolve(Objects.requireNonNull(args.getMap("blob")));
+                    if (data == null) {
+                        promise.reject(new Error("blob not found"));
+                        return;
+                    }
+                } else if ("base64".equals(args.getString("mode"))) {
+                    data = Base64.decode(args.getString("str"), 0);
+                } else {
+                    data = Objects.requireNonNull(args.getString("str")).getBytes();
+                }
+                synchronized (stream) {
+                    stream.checkError();
+                    stream.write(data);
+                    if (stream.buffered > 0 && stream.pendingFlush == null && stream.flushInterval > 0) {
+                        stream.pendingFlush = getScheduler().schedule(() -> {
+                            synchronized (stream) {
+                                stream.pendingFlush = null;
+                                try {
+                                    stream.flush(stream.fsync);
+                                } catch (IOException e) {
+                                    stream.error = e;
+                                }
+                            }
+                        }, stream.flushInterval, TimeUnit.MILLISECONDS);
+                    }
+                }
+                promise.resolve(null);
+            } catch (IOException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void flushAppendStream(int id, boolean fsync, Promise promise) {
+        executeSerial(id, promise, () -> {
+            try {
+                AppendStream stream = appendStreams.get(id);
+                if (stream == null) throw new IOException("stream not found");
+                synchronized (stream) {
+                    stream.checkError();
+                    stream.flush(fsync);
+                    promise.resolve(stream.getStats());
+                }
+            } catch (IOException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void closeAppendStream(int id, Promise promise) {
+        executeSerial(id, promise, () -> {
+            try {
+                AppendStream stream = appendStreams.remove(id);
+                if (stream == null) throw new IOException("stream not found");
+                synchronized (stream) {
+                    try {
+                        stream.checkError();
+                        stream.flush(stream.fsync);
+                    } finally {
+                        stream.fos.close();
+                    }
+                    promise.resolve(stream.getStats());
+                }
+            } catch (IOException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void writeFile(ReadableMap args, Promise promise) {
+        Operation op = startOperation(args);
+        execute(ioExecutor, promise, op, () -> {
+            try {
+                String path = Objects.requireNonNull(args.getString("path"));
+                BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+                ReadableMap blob = Objects.requireNonNull(args.getMap("blob"));
+                byte[] data = blobModule.resolve(blob);
+                if (data == null) {
+                    promise.reject(new Error("blob not found"));
+                    return;
+                }
+                closeCachedChannels(path);
+                File file = new File(path);
+                long fileSize = file.exists() ? file.length() : 0;
+                long offset = args.hasKey("offset") ? (long) args.getDouble("offset") : 0;
+                if (offset < 0) offset = fileSize + offset + 1;
+                boolean truncate = args.hasKey("truncate") && args.getBoolean("truncate");
+                if (offset == 0 && truncate && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN_MR1) {
+                    AtomicFile af = new AtomicFile(file);
+                    FileOutputStream fos = af.startWrite();
+                    try {
+                        writeChunked(fos, data, op);
+                    } catch (IOException | RuntimeException e) {
+                        af.failWrite(fos);
+                        throw e;
+                    }
+                    af.finishWrite(fos);
+                } else {
+                    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                    try {
+                        raf.seek(offset);
+                        writeChunked(Channels.newOutputStream(raf.getChannel()), data, op);
+                        if (truncate) {
+                            raf.setLength(raf.getFilePointer());
+                        }
+                    } finally {
+                        raf.close();
+                    }
+                }
+                promise.resolve(null);
+            } catch (IOException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void deleteFile(String path, boolean recursive, ReadableMap options, Promise promise) {
+        Operation op = startOperation(options);
+        execute(ioExecutor, promise, op, () -> {
+            try {
+                closeCachedChannels(path);
+                File file = new File(path);
+                if (recursive) {
+                    TreeOperation tree = deleteTree(file, op);
+                    if (tree.getErrorCount() > 0) {
+                        throw new IOException("cannot delete " + tree.errors.get(0)[0]);
+                    }
+                } else {
+                    if (!file.delete()) {
+                        throw new IOException("cannot delete");
+                    }
+                }
+                promise.resolve(null);
+            } catch (IOException | InterruptedException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void deleteTree(String path, ReadableMap options, Promise promise) {
+        Operation op = startOperation(options);
+        execute(ioExecutor, promise, op, () -> {
+            try {
+                closeCachedChannels(path);
+                TreeOperation tree = deleteTree(new File(path), op);
+                if (verbose) Log.i("ReactNativeMoFs", "deleteTree " + path + " files=" + tree.files.get() + " errors=" + tree.getErrorCount());
+                promise.resolve(tree.toMap());
+            } catch (IOException | InterruptedException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void copyTree(String fromPath, String toPath, ReadableMap options, Promise promise) {
+        Operation op = startOperation(options);
+        execute(ioExecutor, promise, op, () -> {
+            try {
+                boolean overwrite = options != null && options.hasKey("overwrite") && options.getBoolean("overwrite");
+                closeCachedChannels(toPath);
+                TreeOperation tree = copyTree(new File(fromPath), new File(toPath), overwrite, op);
+                if (verbose) Log.i("ReactNativeMoFs", "copyTree " + fromPath + " " + toPath + " bytes=" + tree.bytes.get() + " errors=" + tree.getErrorCount());
+                promise.resolve(tree.toMap());
+            } catch (IOException | InterruptedException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void renameFile(String fromPath, String toPath, Promise promise) {
+        execute(ioExecutor, promise, () -> {
+            try {
+                closeCachedChannels(fromPath);
+                closeCachedChannels(toPath);
+                File file = new File(fromPath);
+                if (!file.renameTo(new File(toPath))) {
+                    throw new IOException("cannot rename");
+                }
+                promise.resolve(null);
+            } catch (IOException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void copyFile(String fromPath, String toPath, ReadableMap options, Promise promise) {
+        Operation op = startOperation(options);
+        execute(ioExecutor, promise, op, () -> {
+            try {
+                boolean overwrite = options != null && options.hasKey("overwrite") && options.getBoolean("overwrite");
+                boolean preserveMtime = options != null && options.hasKey("preserveMtime") && options.getBoolean("preserveMtime");
+                File from = new File(fromPath);
+                File to = new File(toPath);
+                if (!overwrite && to.exists()) throw new IOException("exists");
+                closeCachedChannels(toPath);
+                long start = System.nanoTime();
+                long size = from.length();
+                AtomicLong done = new AtomicLong();
+                long bytes = copyFileAtomic(from, to, preserveMtime, op, (n) -> op.progress(done.addAndGet(n), size));
+                WritableMap res = getTransferResult(bytes, start);
+                if (verbose) Log.i("ReactNativeMoFs", "copyFile " + fromPath + " " + toPath + " " + res.toHashMap());
+                promise.resolve(res);
+            } catch (IOException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    /**
+     * rename if possible, otherwise (e.g. across mount points) copy and delete the source.
+     * directories are copied with copyTree.
+     */
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void moveFile(String fromPath, String toPath, ReadableMap options, Promise promise) {
+        Operation op = startOperation(options);
+        execute(ioExecutor, promise, op, () -> {
+            try {
+                boolean overwrite = options != null && options.hasKey("overwrite") && options.getBoolean("overwrite");
+                File from = new File(fromPath);
+                File to = new File(toPath);
+                if (!from.exists()) throw new IOException("not found");
+                if (!overwrite && to.exists()) throw new IOException("exists");
+                closeCachedChannels(fromPath);
+                closeCachedChannels(toPath);
+                long start = System.nanoTime();
+                long bytes;
+                boolean directory = from.isDirectory();
+                boolean renamed = from.renameTo(to);
+                if (renamed) {
+                    bytes = directory ? 0 : to.length();
+                } else if (directory) {
+                    TreeOperation tree = copyTree(from, to, overwrite, op);
+                    if (tree.getErrorCount() > 0) throw new IOException("cannot copy " + tree.errors.get(0)[0]);
+                    bytes = tree.bytes.get();
+                    tree = deleteTree(from, op);
+                    if (tree.getErrorCount() > 0) throw new IOException("cannot delete " + tree.errors.get(0)[0]);
+                } else {
+                    long size = from.length();
+                    AtomicLong done = new AtomicLong();
+                    bytes = copyFileAtomic(from, to, true, op, (n) -> op.progress(done.addAndGet(n), size));
+                    if (!from.delete()) throw new IOException("cannot delete source");
+                }
+                WritableMap res = getTransferResult(bytes, start);
+                res.putBoolean("renamed", renamed);
+                if (verbose) Log.i("ReactNativeMoFs", "moveFile " + fromPath + " " + toPath + " " + res.toHashMap());
+                promise.resolve(res);
+            } catch (IOException | InterruptedException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void listDir(String path, Promise promise) {
+        execute(ioExecutor, promise, () -> {
+            try {
+                File file = new File(path);
+                WritableArray res = Arguments.createArray();
+                String[] fileList = file.list();
+                if (fileList == null) {
+                    throw new IOException("cannot read dir");
+                }
+                for (String i : fileList) {
+                    res.pushString(i);
+                }
+                promise.resolve(res);
+            } catch (IOException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void openWalk(String path, ReadableMap args, Promise promise) {
+        try {
+            File root = new File(path);
+            if (!root.isDirectory()) throw new IOException("not a directory");
+            int maxDepth = args.hasKey("maxDepth") ? args.getInt("maxDepth") : Integer.MAX_VALUE;
+            boolean includeStat = args.hasKey("includeStat") && args.getBoolean("includeStat");
+            int pageSize = args.hasKey("pageSize") ? args.getInt("pageSize") : 1000;
+            if (maxDepth <= 0 || pageSize <= 0) throw new IOException("invalid args");
+            int id = nextStreamId.getAndIncrement();
+            dirWalks.put(id, new DirWalk(root, maxDepth, includeStat, pageSize));
+            if (verbose) Log.i("ReactNativeMoFs", "openWalk id=" + id + " path=" + path);
+            promise.resolve(id);
+        } catch (IOException e) {
+            promise.reject(e);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void readWalk(int id, Promise promise) {
+        executeSerial(id, promise, () -> {
+            try {
+                DirWalk walk = dirWalks.get(id);
+                if (walk == null) throw new IOException("walk not found");
+                List<WalkEntry> page = walk.readPage();
+                if (page == null) {
+                    promise.resolve(null);
+                    return;
+                }
+                WritableArray res = Arguments.createArray();
+                for (WalkEntry entry : page) {
+                    WritableMap item = Arguments.createMap();
+                    item.putString("path", entry.path);
+                    item.putString("type", entry.type);
+                    if (walk.includeStat) {
+                        if (entry.type.equals("file")) item.putDouble("size", entry.size);
+                        item.putDouble("lastModified", entry.lastModified);
+                    }
+                    if (entry.error != null) item.putString("error", entry.error);
+                    res.pushMap(item);
+                }
+                promise.resolve(res);
+            } catch (IOException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void closeWalk(int id, Promise promise) {
+        executeSerial(id, promise, () -> {
+            dirWalks.remove(id);
+            promise.resolve(null);
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void createDir(String path, Promise promise) {
+        execute(ioExecutor, promise, () -> {
+            try {
+                File file = new File(path);
+                if (!file.mkdirs()) {
+                    throw new IOException("cannot mkdirs");
+                }
+                promise.resolve(null);
+            } catch (IOException e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void stat(String path, Promise promise) {
+        execute(ioExecutor, promise, () -> {
+            try {
+                File file = new File(path);
+                WritableMap res = Arguments.createMap();
+                if (file.isFile()) {
+                    res.putString("type", "file");
+                    res.putInt("length", (int) file.length());
+                    res.putDouble("lastModified", file.lastModified());
+                } else if (file.isDirectory()) {
+                    res.putString("type", "directory");
+                    res.putDouble("lastModified", file.lastModified());
+                }
+                promise.resolve(res);
+            } catch (Exception e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void chmod(String path, int mode, Promise promise) {
+        execute(ioExecutor, promise, () -> {
+            try {
+                File file = new File(path);
+                // executable: 1 = execute, 2 = write, 4 = read
+                boolean executable = (mode & 73) > 0;
+                boolean writable = (mode & 146) > 0;
+                boolean readable = (mode & 292) > 0;
+                boolean otherExecutable = (mode & 1) > 0;
+                boolean otherWritable = (mode & 2) > 0;
+                boolean otherReadable = (mode & 4) > 0;
+                if (!file.setExecutable(executable, !otherExecutable))
+                    throw new IOException("chmod failed");
+                if (!file.setReadable(readable, !otherReadable)) throw new IOException("chmod failed");
+                if (!file.setWritable(writable, !otherReadable)) throw new IOException("chmod failed");
+                promise.resolve(null);
+            } catch (Exception e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void getBlobHash(ReadableMap blob, String algorithm, ReadableMap options, Promise promise) {
+        Operation op = startOperation(options);
+        execute(cpuExecutor, promise, op, () -> {
+            try {
+                BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+                byte[] data = blobModule.resolve(blob);
+                if (data == null) {
+                    promise.reject(new Error("blob not found"));
+                    return;
+                }
+                if (verbose) Log.i("ReactNativeMoFs", "getBlobHash " + algorithm + " " + data.length);
+                MessageDigest digest = getMessageDigest(algorithm);
+                for (int pos = 0; pos < data.length; pos += CHUNK_SIZE) {
+                    op.progress(pos, data.length);
+                    digest.update(data, pos, Math.min(CHUNK_SIZE, data.length - pos));
+                }
+                op.progress(data.length, data.length);
+                byte[] tmp = digest.digest();
+                promise.resolve(getHexFromBytes(tmp));
+            } catch (CancellationException e) {
+                promise.reject("ECANCELLED", e.getMessage(), e);
+            } catch (Exception e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void getFileHash(String path, String algorithm, ReadableMap options, Promise promise) {
+        Operation op = startOperation(options);
+        execute(cpuExecutor, promise, op, () -> {
+            try (FileChannel channel = new FileInputStream(path).getChannel()) {
+                MessageDigest digest = getMessageDigest(algorithm);
+                long fileSize = channel.size();
+                long offset = (options != null && options.hasKey("offset")) ? (long) options.getDouble("offset") : 0;
+                if (offset < 0) offset = fileSize + offset + 1;
+                long length = (options != null && options.hasKey("length")) ? (long) options.getDouble("length") : fileSize - offset;
+                if (offset < 0 || length < 0 || offset + length > fileSize) throw new IOException("invalid range");
+                if (verbose) Log.i("ReactNativeMoFs", "getFileHash " + algorithm + " " + path + " " + offset + " " + length);
+                streamChannel(channel, offset, length, op, (buffer, res) -> digest.update(buffer, 0, res));
+                promise.resolve(getHexFromBytes(digest.digest()));
+            } catch (CancellationException e) {
+                promise.reject("ECANCELLED", e.getMessage(), e);
+            } catch (Exception e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void getHashes(ReadableMap source, ReadableArray algorithms, ReadableMap options, Promise promise) {
+        Operation op = startOperation(options);
+        execute(cpuExecutor, promise, op, () -> {
+            try {
+                MultiHash hash = new MultiHash(algorithms);
+                if (source.hasKey("blob")) {
+                    BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+                    byte[] data = blobModule.resolve(Objects.requireNonNull(source.getMap("blob")));
+                    if (data == null) {
+                        promise.reject(new Error("blob not found"));
+                        return;
+                    }
+                    for (int pos = 0; pos < data.length; pos += CHUNK_SIZE) {
+                        op.progress(pos, data.length);
+                        hash.update(data, pos, Math.min(CHUNK_SIZE, data.length - pos));
+                    }
+                    op.progress(data.length, data.length);
+                } else {
+                    try (FileChannel channel = new FileInputStream(Objects.requireNonNull(source.getString("path"))).getChannel()) {
+                        long fileSize = channel.size();
+                        long offset = source.hasKey("offset") ? (long) source.getDouble("offset") : 0;
+                        if (offset < 0) offset = fileSize + offset + 1;
+                        long length = source.hasKey("length") ? (long) source.getDouble("length") : fileSize - offset;
+                        if (offset < 0 || length < 0 || offset + length > fileSize) throw new IOException("invalid range");
+                        streamChannel(channel, offset, length, op, (buffer, res) -> hash.update(buffer, 0, res));
+                    }
+                }
+                promise.resolve(hash.getResult());
+            } catch (CancellationException e) {
+                promise.reject("ECANCELLED", e.getMessage(), e);
+            } catch (Exception e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void getTreeHash(ReadableMap source, ReadableMap args, Promise promise) {
+        Operation op = startOperation(args);
+        execute(cpuExecutor, promise, op, () -> {
+            FileChannel openChannel = null;
+            try {
+                String algorithm = args.hasKey("algorithm") ? Objects.requireNonNull(args.getString("algorithm")) : "sha256";
+                int chunkSize = args.hasKey("chunkSize") ? args.getInt("chunkSize") : 4 * CHUNK_SIZE;
+                if (chunkSize <= 0) throw new IOException("invalid chunkSize");
+                final byte[] data;
+                final FileChannel channel;
+                final long offset;
+                final long length;
+                if (source.hasKey("blob")) {
+                    BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+                    data = blobModule.resolve(Objects.requireNonNull(source.getMap("blob")));
+                    if (data == null) {
+                        promise.reject(new Error("blob not found"));
+                        return;
+                    }
+                    channel = null;
+                    offset = 0;
+                    length = data.length;
+                } else {
+                    data = null;
+                    openChannel = new FileInputStream(Objects.requireNonNull(source.getString("path"))).getChannel();
+                    channel = openChannel;
+                    long fileSize = channel.size();
+                    long tmp = source.hasKey("offset") ? (long) source.getDouble("offset") : 0;
+                    offset = (tmp < 0) ? fileSize + tmp + 1 : tmp;
+                    length = source.hasKey("length") ? (long) source.getDouble("length") : fileSize - offset;
+                    if (offset < 0 || length < 0 || offset + length > fileSize) throw new IOException("invalid range");
+                }
+                int count = (int) Math.max(1, (length + chunkSize - 1) / chunkSize);
+                if (verbose) Log.i("ReactNativeMoFs", "getTreeHash " + algorithm + " " + length + " chunks=" + count);
+                byte[][] leaves = new byte[count][];
+                AtomicLong done = new AtomicLong();
+                ArrayList<Callable<Void>> tasks = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    final int index = i;
+                    tasks.add(() -> {
+                        op.check();
+                        long start = (long) index * chunkSize;
+                        int size = (int) Math.min(chunkSize, length - start);
+                        MessageDigest digest = getMessageDigest(algorithm);
+                        if (data != null) {
+                            digest.update(data, (int) start, size);
+                        } else {
+                            byte[] buffer = new byte[size];
+                            if (readFully(channel, ByteBuffer.wrap(buffer), offset + start) != size) throw new IOException("incomplete read");
+                            digest.update(buffer);
+                        }
+                        leaves[index] = digest.digest();
+                        op.progress(done.addAndGet(size), length);
+                        return null;
+                    });
+                }
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && count > 1) {
+                    ForkJoinPool pool;
+                    synchronized (this) {
+                        if (treeHashPool == null) treeHashPool = new ForkJoinPool(CPU_COUNT);
+                        pool = treeHashPool;
+                    }
+                    for (Future<Void> future : pool.invokeAll(tasks)) {
+                        try {
+                            future.get();
+                        } catch (ExecutionException e) {
+                            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                        }
+                    }
+                } else {
+                    for (Callable<Void> task : tasks) task.call();
+                }
+                WritableMap res = Arguments.createMap();
+                res.putString("root", getHexFromBytes(getMerkleRoot(algorithm, leaves)));
+                res.putInt("chunkSize", chunkSize);
+                WritableArray chunks = Arguments.createArray();
+                for (byte[] leaf : leaves) chunks.pushString(getHexFromBytes(leaf));
+                res.putArray("chunks", chunks);
+                promise.resolve(res);
+            } catch (CancellationException e) {
+                promise.reject("ECANCELLED", e.getMessage(), e);
+            } catch (Exception e) {
+                promise.reject(e);
+            } finally {
+                if (openChannel != null) closeChannel(openChannel);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void getBlobHmac(ReadableMap blob, String algorithm, String key, Promise promise) {
+        execute(cpuExecutor, promise, () -> {
+            try {
+                BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+                byte[] data = blobModule.resolve(blob);
+                if (data == null) {
+                    promise.reject(new Error("blob not found"));
+                    return;
+                }
+                if (verbose) Log.i("ReactNativeMoFs", "getBlobHash " + algorithm + " " + data.length);
+                Mac mac = getMac(algorithm, key);
+                mac.update(data);
+                byte[] tmp = mac.doFinal();
+                promise.resolve(getHexFromBytes(tmp));
+            } catch (Exception e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void cryptBlob(ReadableMap blob, String algorithm, boolean encrypt, String key, String iv, ReadableMap options, Promise promise) {
+        Operation op = startOperation(options);
+        execute(cpuExecutor, promise, op, () -> {
+            try {
+                BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+                byte[] data = blobModule.resolve(blob);
+                if (data == null) {
+                    promise.reject(new Error("blob not found"));
+                    return;
+                }
+                Cipher cipher = getCipher(algorithm, encrypt, key, iv);
+                byte[] output = new byte[cipher.getOutputSize(data.length)];
+                int outputLength = 0;
+                for (int pos = 0; pos < data.length; pos += CHUNK_SIZE) {
+                    op.progress(pos, data.length);
+                    outputLength += cipher.update(data, pos, Math.min(CHUNK_SIZE, data.length - pos), output, outputLength);
+                }
+                outputLength += cipher.doFinal(output, outputLength);
+                op.progress(data.length, data.length);
+                byte[] res = (outputLength == output.length) ? output : Arrays.copyOf(output, outputLength);
+                String blobId = blobModule.store(res);
+                WritableMap resBlob = Arguments.createMap();
+                resBlob.putInt("size", res.length);
+                resBlob.putInt("offset", 0);
+                resBlob.putString("blobId", blobId);
+                promise.resolve(resBlob);
+            } catch (CancellationException e) {
+                promise.reject("ECANCELLED", e.getMessage(), e);
+            } catch (Exception e) {
+                promise.reject(e);
+            }
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void cryptFile(String fromPath, String toPath, String algorithm, boolean encrypt, String key, String iv, ReadableMap options, Promise promise) {
+        Operation op = startOperation(options);
+        execute(cpuExecutor, promise, op, () -> {
+            File tempFile = null;
+            try (FileChannel channel = new FileInputStream(fromPath).getChannel()) {
+                if (algorithm.equals("aes-gcm") && !encrypt && channel.size() > MAX_GCM_DECRYPT_SIZE) {
+                    // the cipher holds back all plaintext until the tag is verified in doFinal
+                    throw new IOException("aes-gcm decrypt is limited to " + MAX_GCM_DECRYPT_SIZE + " bytes");
+                }
+                Cipher cipher = getCipher(algorithm, encrypt, key, iv);
+                File file = new File(toPath);
+                tempFile = createTempFileFor(file);
+                try (FileOutputStream fos = new FileOutputStream(tempFile)) {
+                    byte[][] output = { new byte[cipher.getOutputSize(CHUNK_SIZE)] };
+                    streamChannel(channel, 0, channel.size(), op, (buffer, length) -> {
+                        int size = cipher.getOutputSize(length);
+                        if (size > output[0].length) output[0] = new byte[size];
+                        fos.write(output[0], 0, cipher.update(buffer, 0, length, output[0], 0));
+                    });
+                    int size = cipher.getOutputSize(0);
+                    if (size > output[0].length) output[0] = new byte[size];
+                    fos.write(output[0], 0, cipher.doFinal(output[0], 0));
+                    fos.getFD().sync();
+                }
+                closeCachedChannels(toPath);
+                commitTempFile(tempFile, file);
+                tempFile = null;
+                promise.resolve(null);
+            } catch (CancellationException e) {
+                promise.reject("ECANCELLED", e.getMessage(), e);
+            } catch (Exception e) {
+                promise.reject(e);
+            } finally {
+                if (tempFile != null) {
+                    boolean ignore = tempFile.delete();
+                }
             }
         });
     }
 
-    @Override
-    public @Nonnull
-    String getName() {
-        return "ReactNativeMoFs";
+    private static final class ImageInfo {
+        // raw size as stored in the file
+        final int width;
+        final int height;
+        // exif orientation, ORIENTATION_NORMAL (1) to ORIENTATION_ROTATE_270 (8). flips are mirrored
+        // like ImageDecoder does
+        final int orientation;
+
+        ImageInfo(int width, int height, int orientation) {
+            this.width = width;
+            this.height = height;
+            this.orientation = (orientation >= 1 && orientation <= 8) ? orientation : ExifInterface.ORIENTATION_NORMAL;
+        }
+
+        boolean isTransposed() {
+            return orientation >= ExifInterface.ORIENTATION_TRANSPOSE;
+        }
+
+        int getOrientedWidth() {
+            return isTransposed() ? height : width;
+        }
+
+        int getOrientedHeight() {
+            return isTransposed() ? width : height;
+        }
+
+        /**
+         * maps raw image coordinates to oriented image coordinates.
+         */
+        Matrix getOrientationMatrix() {
+            Matrix matrix = new Matrix();
+            switch (orientation) {
+                case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                    matrix.postScale(-1, 1);
+                    matrix.postTranslate(width, 0);
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    matrix.postRotate(180);
+                    matrix.postTranslate(width, height);
+                    break;
+                case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                    matrix.postScale(1, -1);
+                    matrix.postTranslate(0, height);
+                    break;
+                case ExifInterface.ORIENTATION_TRANSPOSE:
+                    matrix.postRotate(90);
+                    matrix.postScale(-1, 1);
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    matrix.postRotate(90);
+                    matrix.postTranslate(height, 0);
+                    break;
+                case ExifInterface.ORIENTATION_TRANSVERSE:
+                    matrix.postRotate(90);
+                    matrix.postScale(1, -1);
+                    matrix.postTranslate(height, width);
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    matrix.postRotate(270);
+                    matrix.postTranslate(0, width);
+                    break;
+            }
+            return matrix;
+        }
+    }
+
+    private static int getExifOrientation(ExifInterface exif) {
+        return exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
     }
 
-    @Override
-    public Map<String, Object> getConstants() {
-        HashMap<String, Object> res = new HashMap<>();
-        res.put("authorities", getProviderAuthority());
-        HashMap<String, String> paths = new HashMap<>();
-        if (getReactApplicationContext().getExternalCacheDir() != null) {
-            paths.put("externalCache", getReactApplicationContext().getExternalCacheDir().getAbsolutePath());
+    private static final int MAX_EXIF_SIZE = 256 * 1024;
+
+    private static void skipFully(InputStream in, long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException();
+                }
+                skipped = 1;
+            }
+            count -= skipped;
         }
-        paths.put("cache", getReactApplicationContext().getCacheDir().getAbsolutePath());
-        paths.put("files", getReactApplicationContext().getFilesDir().getAbsolutePath());
-        paths.put("packageResource", getReactApplicationContext().getPackageResourcePath());
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            paths.put("data", getReactApplicationContext().getDataDir().getAbsolutePath());
+    }
+
+    private static int readIntLE(DataInputStream in, int bytes) throws IOException {
+        int res = 0;
+        for (int i = 0; i < bytes; i++) {
+            res |= in.readUnsignedByte() << (8 * i);
         }
-        res.put("paths", paths);
         return res;
     }
 
-    @SuppressWarnings("unused")
-    @ReactMethod
-    public void setVerbose(boolean verbose) {
-        this.verbose = verbose;
+    private static String readFourCC(DataInputStream in) throws IOException {
+        byte[] tmp = new byte[4];
+        in.readFully(tmp);
+        return new String(tmp, StandardCharsets.US_ASCII);
+    }
+
+    private static boolean hasExifPrefix(byte[] data) {
+        return data.length >= 6 && data[0] == 'E' && data[1] == 'x' && data[2] == 'i' && data[3] == 'f' && data[4] == 0 && data[5] == 0;
     }
 
-    private boolean deleteRecursive(File fileOrDirectory) {
-        if (fileOrDirectory.isDirectory()) {
-            boolean res = true;
-            for (File child : Objects.requireNonNull(fileOrDirectory.listFiles())) {
-                res = res && deleteRecursive(child);
+    /**
+     * exif orientation from the tiff structure of an exif block, 1 if missing.
+     */
+    private static int getTiffOrientation(byte[] data, int offset, int length) {
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(data, offset, length).slice();
+            short order = buf.getShort(0);
+            if (order == 0x4949) {
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+            } else if (order != 0x4d4d) {
+                return 1;
             }
-            return res;
-        } else {
-            return fileOrDirectory.delete();
+            int ifd = buf.getInt(4);
+            int count = buf.getShort(ifd) & 0xffff;
+            for (int i = 0; i < count; i++) {
+                int entry = ifd + 2 + i * 12;
+                if ((buf.getShort(entry) & 0xffff) == 0x0112) {
+                    return buf.getShort(entry + 8) & 0xffff;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // truncated or broken exif
         }
+        return 1;
     }
 
-    private String getHexFromBytes(byte[] data) {
-        StringBuilder sb = new StringBuilder(data.length * 2);
-        for (byte b : data) sb.append(String.format("%02x", b & 0xFF));
-        return sb.toString();
+    /**
+     * exif orientation for a clockwise rotation of 0, 90, 180 or 270 degrees.
+     */
+    private static int getRotationOrientation(int rotation) {
+        switch (rotation) {
+            case 90:
+                return ExifInterface.ORIENTATION_ROTATE_90;
+            case 180:
+                return ExifInterface.ORIENTATION_ROTATE_180;
+            case 270:
+                return ExifInterface.ORIENTATION_ROTATE_270;
+            default:
+                return ExifInterface.ORIENTATION_NORMAL;
+        }
     }
 
-    private WritableMap getMapFromIntent(Intent intent) {
-        WritableMap res = Arguments.createMap();
-        res.putString("action", intent.getAction());
-        res.putString("type", intent.getType());
-        if (intent.getData() != null) res.putString("data", intent.getData().toString());
-        Bundle extras = intent.getExtras();
-        if (extras != null) {
-            WritableMap resExtras = Arguments.createMap();
-            for (String key : extras.keySet()) {
-                Object val = extras.get(key);
-                if (val instanceof String) {
-                    resExtras.putString(key, (String) val);
-                } else if (val instanceof Uri) {
-                    resExtras.putString(key, val.toString());
-                } else if (val instanceof Number) {
-                    resExtras.putDouble(key, ((Number) val).doubleValue());
-                } else if (val instanceof Boolean) {
-                    resExtras.putBoolean(key, (Boolean) val);
-                } else if (val == null) {
-                    resExtras.putNull(key);
+    /**
+     * size and orientation from the container header only (jpeg, png, webp, heif / avif).
+     * null if the format is not known.
+     */
+    private static ImageInfo readImageHeader(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream.markSupported() ? stream : new BufferedInputStream(stream, 64));
+        byte[] head = new byte[12];
+        in.mark(head.length);
+        try {
+            in.readFully(head);
+            in.reset();
+            if ((head[0] & 0xff) == 0xff && (head[1] & 0xff) == 0xd8) {
+                return readJpegHeader(in);
+            } else if ((head[0] & 0xff) == 0x89 && head[1] == 'P' && head[2] == 'N' && head[3] == 'G') {
+                skipFully(in, 12);
+                if (!"IHDR".equals(readFourCC(in))) {
+                    return null;
+                }
+                return new ImageInfo(in.readInt(), in.readInt(), 0);
+            } else if ("RIFF".equals(new String(head, 0, 4, StandardCharsets.US_ASCII)) && "WEBP".equals(new String(head, 8, 4, StandardCharsets.US_ASCII))) {
+                skipFully(in, 12);
+                return readWebpHeader(in);
+            } else if ("ftyp".equals(new String(head, 4, 4, StandardCharsets.US_ASCII))) {
+                int[] res = new int[3];
+                readHeifBoxes(in, Long.MAX_VALUE, res);
+                if (res[0] <= 0 || res[1] <= 0) {
+                    return null;
                 }
+                // irot is counter clockwise
+                return new ImageInfo(res[0], res[1], getRotationOrientation(((4 - res[2]) % 4) * 90));
             }
-            res.putMap("extras", resExtras);
+        } catch (EOFException e) {
+            // truncated
         }
-        return res;
+        return null;
     }
 
-    private String getMimeTypePath(String path) {
-        String[] tmp = path.split("\\.");
-        return MimeTypeMap.getSingleton().getMimeTypeFromExtension(tmp[tmp.length - 1]);
+    private static ImageInfo readJpegHeader(DataInputStream in) throws IOException {
+        skipFully(in, 2);
+        int orientation = ExifInterface.ORIENTATION_NORMAL;
+        boolean hasExif = false;
+        while (true) {
+            int marker = in.readUnsignedByte();
+            if (marker != 0xff) {
+                return null;
+            }
+            while (marker == 0xff) {
+                marker = in.readUnsignedByte();
+            }
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd8)) {
+                continue;
+            }
+            if (marker == 0xd9 || marker == 0xda) {
+                return null;
+            }
+            int length = in.readUnsignedShort() - 2;
+            if (length < 0) {
+                return null;
+            }
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                if (length < 5) {
+                    return null;
+                }
+                in.readUnsignedByte();
+                int height = in.readUnsignedShort();
+                int width = in.readUnsignedShort();
+                if (width == 0 || height == 0) {
+                    return null;
+                }
+                return new ImageInfo(width, height, orientation);
+            }
+            if (marker == 0xe1 && !hasExif && length <= MAX_EXIF_SIZE) {
+                byte[] app1 = new byte[length];
+                in.readFully(app1);
+                if (hasExifPrefix(app1)) {
+                    hasExif = true;
+                    orientation = getTiffOrientation(app1, 6, app1.length - 6);
+                }
+            } else {
+                skipFully(in, length);
+            }
+        }
     }
 
-    private String getProviderAuthority() {
-        return getReactApplicationContext().getPackageName() + ".ReactNativeMoFs";
+    private static ImageInfo readWebpHeader(DataInputStream in) throws IOException {
+        int width = -1;
+        int height = -1;
+        int orientation = ExifInterface.ORIENTATION_NORMAL;
+        boolean hasExif = false;
+        while (true) {
+            String type;
+            try {
+                type = readFourCC(in);
+            } catch (EOFException e) {
+                break;
+            }
+            long size = readIntLE(in, 4) & 0xffffffffL;
+            long padded = size + (size & 1);
+            if (type.equals("VP8X") && size >= 10) {
+                hasExif = (in.readUnsignedByte() & 0x08) != 0;
+                skipFully(in, 3);
+                width = readIntLE(in, 3) + 1;
+                height = readIntLE(in, 3) + 1;
+                skipFully(in, padded - 10);
+                if (!hasExif) {
+                    break;
+                }
+            } else if (type.equals("VP8 ") && width < 0 && size >= 10) {
+                skipFully(in, 3);
+                if (in.readUnsignedByte() != 0x9d || in.readUnsignedByte() != 0x01 || in.readUnsignedByte() != 0x2a) {
+                    return null;
+                }
+                width = readIntLE(in, 2) & 0x3fff;
+                height = readIntLE(in, 2) & 0x3fff;
+                break;
+            } else if (type.equals("VP8L") && width < 0 && size >= 5) {
+                if (in.readUnsignedByte() != 0x2f) {
+                    return null;
+                }
+                int bits = readIntLE(in, 4);
+                width = (bits & 0x3fff) + 1;
+                height = ((bits >> 14) & 0x3fff) + 1;
+                break;
+            } else if (type.equals("EXIF") && hasExif && size <= MAX_EXIF_SIZE) {
+                byte[] exif = new byte[(int) size];
+                in.readFully(exif);
+                int offset = hasExifPrefix(exif) ? 6 : 0;
+                orientation = getTiffOrientation(exif, offset, exif.length - offset);
+                break;
+            } else {
+                skipFully(in, padded);
+            }
+        }
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        return new ImageInfo(width, height, orientation);
     }
 
-    private String getFileProviderAuthority() {
-        return getReactApplicationContext().getPackageName() + ".ReactNativeMoFsFile";
+    /**
+     * walks the iso bmff boxes down to meta/iprp/ipco. res is width, height and irot angle
+     * of the largest ispe, which is the primary image and not a thumbnail or grid tile.
+     */
+    private static void readHeifBoxes(DataInputStream in, long length, int[] res) throws IOException {
+        while (length >= 8) {
+            long size = in.readInt() & 0xffffffffL;
+            String type = readFourCC(in);
+            long header = 8;
+            if (size == 1) {
+                size = in.readLong();
+                header = 16;
+            } else if (size == 0) {
+                size = length;
+            }
+            if (size < header || size > length) {
+                throw new IOException("invalid heif box");
+            }
+            long payload = size - header;
+            length -= size;
+            if (type.equals("meta") && payload >= 4) {
+                skipFully(in, 4);
+                readHeifBoxes(in, payload - 4, res);
+                return;
+            } else if (type.equals("iprp") || type.equals("ipco")) {
+                readHeifBoxes(in, payload, res);
+            } else if (type.equals("ispe") && payload >= 12) {
+                skipFully(in, 4);
+                int width = in.readInt();
+                int height = in.readInt();
+                if ((long) width * height > (long) res[0] * res[1]) {
+                    res[0] = width;
+                    res[1] = height;
+                }
+                skipFully(in, payload - 12);
+            } else if (type.equals("irot") && payload >= 1) {
+                res[2] = in.readUnsignedByte() & 3;
+                skipFully(in, payload - 1);
+            } else {
+                skipFully(in, payload);
+            }
+        }
     }
 
-    private Uri getUriForPath(String path) {
-        return FileProvider.getUriForFile(
-            getReactApplicationContext(),
-            getFileProviderAuthority(),
-            new File(path)
-        );
+    private static ImageInfo getImageInfo(String path) throws IOException {
+        try (InputStream in = new FileInputStream(path)) {
+            ImageInfo info = readImageHeader(in);
+            if (info != null) {
+                return info;
+            }
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("failed to decode bitmap");
+        }
+        return new ImageInfo(options.outWidth, options.outHeight, getExifOrientation(new ExifInterface(path)));
     }
 
-    @SuppressWarnings("unused")
-    @ReactMethod
-    public void getInitialIntent(final Promise promise) {
-        final LifecycleEventListener lifecycleEventListener = new LifecycleEventListener() {
-            @Override
-            public void onHostResume() {
-                getReactApplicationContext().removeLifecycleEventListener(this);
-                Activity activity = getReactApplicationContext().getCurrentActivity();
-                if (activity != null) {
-                    Intent intent = activity.getIntent();
-                    promise.resolve(getMapFromIntent(intent));
-                } else {
-                    promise.resolve(null);
-                }
-            }
+    private static ImageInfo getImageInfo(byte[] data) throws IOException {
+        ImageInfo info = readImageHeader(new ByteArrayInputStream(data));
+        if (info != null) {
+            return info;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("failed to decode bitmap");
+        }
+        ExifInterface exif = new ExifInterface(new ByteArrayInputStream(data));
+        return new ImageInfo(options.outWidth, options.outHeight, getExifOrientation(exif));
+    }
 
-            @Override
-            public void onHostPause() {
+    /**
+     * decode only the part of the image that is visible when the rotated image is drawn with
+     * matrix onto a width x height bitmap, subsampled as far as the scale of matrix allows.
+     * matrix is updated to map the returned bitmap, which is not rotated, to the same output.
+     * the image is read from data, or from path if data is null.
+     */
+    private Bitmap decodeBitmapRegion(byte[] data, String path, ImageInfo info, Matrix matrix, int width, int height) throws IOException {
+        // raw image coordinates -> output coordinates
+        Matrix full = new Matrix(matrix);
+        full.preConcat(info.getOrientationMatrix());
+
+        Rect region = new Rect(0, 0, info.width, info.height);
+        int sampleSize = 1;
+        Matrix inverse = new Matrix();
+        if (full.invert(inverse)) {
+            RectF visible = new RectF(0, 0, width, height);
+            inverse.mapRect(visible);
+            Rect tmp = new Rect();
+            visible.roundOut(tmp);
+            // one extra pixel for filtering at the edges
+            if (!region.intersect(tmp.left - 1, tmp.top - 1, tmp.right + 1, tmp.bottom + 1)) {
+                region.set(0, 0, 1, 1);
             }
+            float[] v = new float[9];
+            full.getValues(v);
+            float scaleX = (float) Math.hypot(v[Matrix.MSCALE_X], v[Matrix.MSKEW_Y]);
+            float scaleY = (float) Math.hypot(v[Matrix.MSKEW_X], v[Matrix.MSCALE_Y]);
+            float scale = Math.max(scaleX, scaleY);
+            while (scale > 0 && sampleSize * 2 * scale <= 1) {
+                sampleSize *= 2;
+            }
+        }
 
-            @Override
-            public void onHostDestroy() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Bitmap bmp = null;
+        if (region.width() < info.width || region.height() < info.height) {
+            try {
+                BitmapRegionDecoder decoder = (data != null)
+                    ? BitmapRegionDecoder.newInstance(data, 0, data.length, false)
+                    : BitmapRegionDecoder.newInstance(path, false);
+                try {
+                    // no inBitmap: decodeRegion keeps the size of a reused bitmap instead of reconfiguring it
+                    options.inMutable = true;
+                    bmp = decoder.decodeRegion(region, options);
+                } finally {
+                    decoder.recycle();
+                }
+            } catch (IOException e) {
+                // format not supported by the region decoder, decode all of it below
             }
-        };
-        Activity activity = getReactApplicationContext().getCurrentActivity();
-        if (activity != null) {
-            lifecycleEventListener.onHostResume();
-        } else {
-            getReactApplicationContext().addLifecycleEventListener(lifecycleEventListener);
         }
+        if (bmp == null) {
+            region.set(0, 0, info.width, info.height);
+            bmp = decodePooled(options, info.width, info.height, (o) -> (data != null)
+                ? BitmapFactory.decodeByteArray(data, 0, data.length, o)
+                : BitmapFactory.decodeFile(path, o));
+        }
+        if (bmp == null) {
+            throw new IOException("failed to decode bitmap");
+        }
+        matrix.preConcat(info.getOrientationMatrix());
+        matrix.preTranslate(region.left, region.top);
+        matrix.preScale((float) region.width() / bmp.getWidth(), (float) region.height() / bmp.getHeight());
+        return bmp;
     }
 
     @SuppressWarnings("unused")
     @ReactMethod
-    public void getMimeTypeForPath(String path, Promise promise) {
-        promise.resolve(getMimeTypePath(path));
+    public void getImageSize(ReadableMap blob, Promise promise) {
+        execute(imageExecutor, promise, () -> {
+            try {
+                BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+                byte[] data = blobModule.resolve(blob);
+                if (data == null) {
+                    promise.reject(new Error("blob not found"));
+                    return;
+                }
+                ImageInfo info = getImageInfo(data);
+                WritableMap res = Arguments.createMap();
+                res.putDouble("width", info.getOrientedWidth());
+                res.putDouble("height", info.getOrientedHeight());
+                promise.resolve(res);
+            } catch (Exception e) {
+                promise.reject(e);
+            }
+        });
     }
 
     @SuppressWarnings("unused")
     @ReactMethod
-    public void getExtensionForMimeType(String mimeType, Promise promise) {
-        promise.resolve(MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType));
+    public void getFileImageSize(String path, Promise promise) {
+        execute(imageExecutor, promise, () -> {
+            try {
+                ImageInfo info = getImageInfo(path);
+                WritableMap res = Arguments.createMap();
+                res.putDouble("width", info.getOrientedWidth());
+                res.putDouble("height", info.getOrientedHeight());
+                promise.resolve(res);
+            } catch (Exception e) {
+                promise.reject(e);
+            }
+        });
     }
 
-    @SuppressWarnings("unused")
-    @ReactMethod
-    public void readBlob(ReadableMap blob, String mode, Promise promise) {
-        BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
-        byte[] data = blobModule.resolve(blob);
-        if (data == null) {
-            promise.reject(new Error("blob not found"));
-            return;
+    private static Map<String, String> exifTags;
+
+    /**
+     * TAG_* field name to exif tag name, collected once.
+     */
+    private static synchronized Map<String, String> getExifTags() {
+        if (exifTags == null) {
+            Map<String, String> tags = new LinkedHashMap<>();
+            for (Field field : ExifInterface.class.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) continue;
+                if (!Modifier.isPublic(field.getModifiers())) continue;
+                if (!field.getName().startsWith("TAG_")) continue;
+                if (field.getType() != String.class) continue;
+                try {
+                    tags.put(field.getName(), (String) Objects.requireNonNull(field.get(null)));
+                } catch (Exception e) {
+                    Log.w("ReactNativeMoFs", "unreadable exif tag " + field.getName(), e);
+                }
+            }
+            exifTags = tags;
         }
-        if (verbose) Log.i("ReactNativeMoFs", "readBlob size=" + data.length);
-        if (mode.equals("base64")) {
-            promise.resolve(Base64.encodeToString(data, Base64.NO_WRAP));
-        } else if (mode.equals("utf8")) {
-            promise.resolve(new String(data));
-        } else {
-            promise.reject(new Error("unknown mode"));
+        return exifTags;
+    }
+
+    /**
+     * the APP1 exif segment of a jpeg including the "Exif\0\0" prefix, null if there is none.
+     */
+    private static byte[] readJpegExif(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        try {
+            if (in.readUnsignedByte() != 0xff || in.readUnsignedByte() != 0xd8) {
+                return null;
+            }
+            return readJpegExifSegment(in);
+        } catch (EOFException e) {
+            return null;
         }
     }
 
-    @SuppressWarnings("unused")
-    @ReactMethod
-    public void createBlob(String str, String mode, Promise promise) {
-        BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
-        byte[] buffer;
-        if (mode.equals("base64")) {
-            buffer = Base64.decode(str, 0);
-        } else if (mode.equals("utf8")) {
-            buffer = str.getBytes();
+    private static byte[] readJpegExifSegment(DataInputStream in) throws IOException {
+        while (true) {
+            int marker = in.readUnsignedByte();
+            if (marker != 0xff) {
+                return null;
+            }
+            while (marker == 0xff) {
+                marker = in.readUnsignedByte();
+            }
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd8)) {
+                continue;
+            }
+            if (marker == 0xd9 || marker == 0xda) {
+                return null;
+            }
+            int length = in.readUnsignedShort() - 2;
+            if (length < 0) {
+                return null;
+            }
+            if (marker == 0xe1 && length >= 6) {
+                byte[] app1 = new byte[length];
+                in.readFully(app1);
+                if (hasExifPrefix(app1)) {
+                    return app1;
+                }
+            } else {
+                skipFully(in, length);
+            }
+        }
+    }
+
+    /**
+     * tags are TAG_* names (or exif tag names), all known tags if null.
+     */
+    private static WritableMap getExifMap(ExifInterface exif, ReadableArray tags) {
+        Map<String, String> known = getExifTags();
+        WritableMap res = Arguments.createMap();
+        if (tags == null) {
+            for (Map.Entry<String, String> entry : known.entrySet()) {
+                String value = exif.getAttribute(entry.getValue());
+                if (value != null) {
+                    res.putString(entry.getKey(), value);
+                }
+            }
         } else {
-            promise.reject(new Error("unknown mode"));
-            return;
+            for (int i = 0; i < tags.size(); i++) {
+                String name = tags.getString(i);
+                String tag = known.get(name);
+                String value = exif.getAttribute(tag != null ? tag : name);
+                if (value != null) {
+                    res.putString(name, value);
+                }
+            }
         }
-        String blobId = blobModule.store(buffer);
-        if (verbose)
-            Log.i("ReactNativeMoFs", "createBlob size=" + buffer.length + " blobId=" + blobId);
-        WritableMap blob = Arguments.createMap();
-        blob.putInt("size", buffer.length);
-        blob.putInt("offset", 0);
-        blob.putString("blobId", blobId);
-        promise.resolve(blob);
+        return res;
     }
 
     @SuppressWarnings("unused")
     @ReactMethod
-    public void readFile(ReadableMap args, Promise promise) {
-        BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
-        try {
-            String path = Objects.requireNonNull(args.getString("path"));
-            File file = new File(path);
-            long fileSize = file.length();
-            int size = args.hasKey("size") ? args.getInt("size") : (int) fileSize;
-            long offset = args.hasKey("offset") ? args.getInt("offset") : 0;
-            if (offset < 0) offset = fileSize + offset + 1;
-            byte[] buffer = new byte[size];
-            FileInputStream fis = new FileInputStream(file);
-            if (fis.skip(offset) != offset) throw new IOException("seek failed");
-            int res = fis.read(buffer);
-            if (res != buffer.length) throw new IOException("incomplete read");
-            fis.close();
-            String blobId = blobModule.store(buffer);
-            WritableMap blob = Arguments.createMap();
-            blob.putInt("size", buffer.length);
-            blob.putInt("offset", 0);
-            blob.putString("blobId", blobId);
-            blob.putString("type", "application/octet-string");
-            blob.putString("name", path); // only last?
-            promise.resolve(blob);
-        } catch (IOException e) {
-            promise.reject(e);
-        }
+    public void getExif(ReadableMap blob, ReadableArray tags, Promise promise) {
+        execute(imageExecutor, promise, () -> {
+            try {
+                BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+                byte[] data = blobModule.resolve(blob);
+                if (data == null) {
+                    promise.reject(new Error("blob not found"));
+                    return;
+                }
+                ExifInterface exif;
+                byte[] app1 = readJpegExif(new ByteArrayInputStream(data));
+                if (app1 != null) {
+                    exif = new ExifInterface(new ByteArrayInputStream(app1), ExifInterface.STREAM_TYPE_EXIF_DATA_ONLY);
+                } else {
+                    exif = new ExifInterface(new ByteArrayInputStream(data));
+                }
+                promise.resolve(getExifMap(exif, tags));
+            } catch (Exception e) {
+                promise.reject(e);
+            }
+        });
     }
 
     @SuppressWarnings("unused")
     @ReactMethod
-    public void writeFile(ReadableMap args, Promise promise) {
-        try {
-            String path = Objects.requireNonNull(args.getString("path"));
-            BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
-            ReadableMap blob = Objects.requireNonNull(args.getMap("blob"));
-            byte[] data = blobModule.resolve(blob);
-            if (data == null) {
-                promise.reject(new Error("blob not found"));
-                return;
+    public void getFileExif(String path, ReadableArray tags, Promise promise) {
+        execute(imageExecutor, promise, () -> {
+            try {
+                byte[] app1;
+                try (InputStream in = new BufferedInputStream(new FileInputStream(path))) {
+                    app1 = readJpegExif(in);
+                }
+                ExifInterface exif;
+                if (app1 != null) {
+                    exif = new ExifInterface(new ByteArrayInputStream(app1), ExifInterface.STREAM_TYPE_EXIF_DATA_ONLY);
+                } else {
+                    exif = new ExifInterface(path);
+                }
+                promise.resolve(getExifMap(exif, tags));
+            } catch (Exception e) {
+                promise.reject(e);
             }
-            File file = new File(path);
-            long fileSize = file.exists() ? file.length() : 0;
-            long offset = args.hasKey("offset") ? args.getInt("offset") : 0;
-            if (offset < 0) offset = fileSize + offset + 1;
-            boolean truncate = args.hasKey("truncate") && args.getBoolean("truncate");
-            if (offset == 0 && truncate && android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.JELLY_BEAN_MR1) {
-                AtomicFile af = new AtomicFile(file);
-                FileOutputStream fos = af.startWrite();
-                fos.write(data);
-                af.finishWrite(fos);
-            } else {
-                RandomAccessFile raf = new RandomAccessFile(file, "rw");
-                raf.seek(offset);
-                raf.write(data);
-                if (truncate) {
-                    raf.setLength(raf.getFilePointer());
+        });
+    }
+
+    private static final class Encoding {
+        final Bitmap.CompressFormat format;
+        final String mimeType;
+        final int quality;
+        // search the highest quality up to quality that fits, 0 for none
+        final int targetBytes;
+        final boolean lossless;
+
+        Encoding(ReadableMap args) throws IOException {
+            int quality = args.hasKey("quality") ? (int) (args.getDouble("quality") * 100) : 100;
+            String encoding = args.hasKey("encoding") ? args.getString("encoding") : null;
+            targetBytes = args.hasKey("targetBytes") ? (int) args.getDouble("targetBytes") : 0;
+            if ("png".equals(encoding)) {
+                format = Bitmap.CompressFormat.PNG;
+                mimeType = "image/png";
+                lossless = true;
+            } else if ("webp".equals(encoding) || "webp-lossy".equals(encoding) || "webp-lossless".equals(encoding)) {
+                // plain webp is lossless at quality 100 (from android 10 on), same as before, unless a
+                // targetBytes quality search is requested
+                lossless = "webp-lossless".equals(encoding) || ("webp".equals(encoding) && quality >= 100 && targetBytes <= 0);
+                if ("webp-lossless".equals(encoding) && Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+                    // before android 10 WEBP at quality 100 is still lossy
+                    throw new IOException("webp-lossless requires android 10");
+                }
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+                    format = lossless ? Bitmap.CompressFormat.WEBP_LOSSLESS : Bitmap.CompressFormat.WEBP_LOSSY;
+                } else {
+                    format = Bitmap.CompressFormat.WEBP;
+                    if (lossless) {
+                        quality = 100;
+                    } else if ("webp-lossy".equals(encoding)) {
+                        quality = Math.min(quality, 99);
+                    }
                 }
-                raf.close();
+                mimeType = "image/webp";
+            } else {
+                format = Bitmap.CompressFormat.JPEG;
+                mimeType = "image/jpeg";
+                lossless = false;
+            }
+            this.quality = quality;
+            if (targetBytes > 0 && lossless) {
+                throw new IOException("targetBytes needs a lossy encoding");
             }
-            promise.resolve(null);
-        } catch (IOException e) {
-            promise.reject(e);
         }
     }
 
-    @SuppressWarnings("unused")
-    @ReactMethod
-    public void deleteFile(String path, boolean recursive, Promise promise) {
-        try {
-            File file = new File(path);
-            if (recursive) {
-                if (!deleteRecursive(file)) {
-                    throw new IOException("cannot delete");
-                }
+    /**
+     * with encoding.targetBytes the highest quality up to encoding.quality is searched that
+     * encodes to at most targetBytes, reusing the buffer. fails if even quality 0 is too large.
+     */
+    private static void compressBitmap(Bitmap bmp, Encoding encoding, EncodeBuffer stream) throws IOException {
+        if (!bmp.compress(encoding.format, encoding.quality, stream)) {
+            throw new IOException("failed to encode image");
+        }
+        if (encoding.targetBytes <= 0 || encoding.lossless || stream.size() <= encoding.targetBytes) {
+            return;
+        }
+        int low = 0;
+        int high = encoding.quality - 1;
+        int best = 0;
+        int last = encoding.quality;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            stream.reset();
+            if (!bmp.compress(encoding.format, mid, stream)) {
+                throw new IOException("failed to encode image");
+            }
+            last = mid;
+            if (stream.size() <= encoding.targetBytes) {
+                best = mid;
+                low = mid + 1;
             } else {
-                if (!file.delete()) {
-                    throw new IOException("cannot delete");
-                }
+                high = mid - 1;
             }
-            promise.resolve(null);
-        } catch (IOException e) {
-            promise.reject(e);
+        }
+        if (last != best) {
+            stream.reset();
+            if (!bmp.compress(encoding.format, best, stream)) {
+                throw new IOException("failed to encode image");
+            }
+        }
+        if (stream.size() > encoding.targetBytes) {
+            throw new IOException("targetBytes " + encoding.targetBytes + " not reachable, quality 0 is " + stream.size() + " bytes");
         }
     }
 
-    @SuppressWarnings("unused")
-    @ReactMethod
-    public void renameFile(String fromPath, String toPath, Promise promise) {
+    private byte[] encodeBitmap(Bitmap bmp, Encoding encoding) throws IOException {
+        EncodeBuffer stream = encodeBufferPool.get();
         try {
-            File file = new File(fromPath);
-            if (!file.renameTo(new File(toPath))) {
-                throw new IOException("cannot rename");
+            compressBitmap(bmp, encoding, stream);
+            return stream.toByteArray();
+        } finally {
+            encodeBufferPool.put(stream);
+        }
+    }
+
+    /**
+     * applies args.matrix and crops to args.width x args.height. the result is from bitmapPool.
+     */
+    private Bitmap transformImage(byte[] data, String path, ReadableMap args, Operation op) throws IOException {
+        op.progress(0, 3);
+        ImageInfo info = (data != null) ? getImageInfo(data) : getImageInfo(path);
+        int width = args.hasKey("width") ? args.getInt("width") : info.getOrientedWidth();
+        int height = args.hasKey("height") ? args.getInt("height") : info.getOrientedHeight();
+        Matrix m = new Matrix();
+        if (args.hasKey("matrix")) {
+            ReadableArray a = args.getArray("matrix");
+            if (a != null) {
+                float[] v = new float[9];
+                for (int i = 0; i < v.length; i++) {
+                    v[i] = (float) a.getDouble(i);
+                }
+                m.setValues(v);
             }
-            promise.resolve(null);
-        } catch (IOException e) {
-            promise.reject(e);
         }
+        Bitmap bmp = decodeBitmapRegion(data, path, info, m, width, height);
+        op.progress(1, 3);
+        // this has problems if the image is made larger.
+        // Bitmap bmp2 = Bitmap.createBitmap(bmp, 0, 0, width, height, m, true);
+        Bitmap bmp2 = bitmapPool.get(width, height, getConfig(bmp));
+        Canvas canvas = new Canvas(bmp2);
+        // the subsampled bitmap may still be scaled by up to 2x, so filter
+        canvas.drawBitmap(bmp, m, new Paint(Paint.FILTER_BITMAP_FLAG));
+        bitmapPool.put(bmp);
+        op.progress(2, 3);
+        return bmp2;
     }
 
-    @SuppressWarnings("unused")
-    @ReactMethod
-    public void listDir(String path, Promise promise) {
+    /**
+     * encodes into a temp file next to path which then replaces path. returns the file size.
+     */
+    private long writeImageFile(Bitmap bmp, Encoding encoding, String path) throws IOException {
+        File file = new File(path);
+        File tmp = createTempFileFor(file);
         try {
-            File file = new File(path);
-            WritableArray res = Arguments.createArray();
-            String[] fileList = file.list();
-            if (fileList == null) {
-                throw new IOException("cannot read dir");
+            try (FileOutputStream stream = new FileOutputStream(tmp)) {
+                if (encoding.targetBytes > 0) {
+                    EncodeBuffer buffer = encodeBufferPool.get();
+                    try {
+                        compressBitmap(bmp, encoding, buffer);
+                        buffer.writeTo(stream);
+                    } finally {
+                        encodeBufferPool.put(buffer);
+                    }
+                } else if (!bmp.compress(encoding.format, encoding.quality, stream)) {
+                    throw new IOException("failed to encode image");
+                }
+                stream.getFD().sync();
             }
-            for (String i : fileList) {
-                res.pushString(i);
+            commitTempFile(tmp, file);
+        } finally {
+            if (tmp.exists()) {
+                boolean ignore = tmp.delete();
             }
-            promise.resolve(res);
-        } catch (IOException e) {
-            promise.reject(e);
         }
+        closeCachedChannels(path);
+        return file.length();
     }
 
     @SuppressWarnings("unused")
     @ReactMethod
-    public void createDir(String path, Promise promise) {
-        try {
-            File file = new File(path);
-            if (!file.mkdirs()) {
-                throw new IOException("cannot mkdirs");
+    public void updateImage(ReadableMap blob, ReadableMap args, Promise promise) {
+        Operation op = startOperation(args);
+        execute(imageExecutor, promise, op, () -> {
+            try {
+                BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+                byte[] data = blobModule.resolve(blob);
+                if (data == null) {
+                    promise.reject(new Error("blob not found"));
+                    return;
+                }
+                Bitmap bmp2 = transformImage(data, null, args, op);
+
+                Encoding encoding = new Encoding(args);
+                byte[] output;
+                try {
+                    output = encodeBitmap(bmp2, encoding);
+                } finally {
+                    bitmapPool.put(bmp2);
+                }
+                op.progress(3, 3);
+                String blobId = blobModule.store(output);
+                WritableMap blob2 = Arguments.createMap();
+                blob2.putInt("size", output.length);
+                blob2.putInt("offset", 0);
+                blob2.putString("blobId", blobId);
+                blob2.putString("type", encoding.mimeType);
+                if (blob.hasKey("name")) {
+                    blob2.putString("name", blob.getString("name"));
+                }
+                promise.resolve(blob2);
+            } catch (CancellationException e) {
+                promise.reject("ECANCELLED", e.getMessage(), e);
+            } catch (Exception e) {
+                promise.reject(e);
             }
-            promise.resolve(null);
-        } catch (IOException e) {
-            promise.reject(e);
-        }
+        });
     }
 
+    /**
+     * same as updateImage, but reads fromPath and writes toPath without going through blobs.
+     * toPath is replaced atomically and may be the same as fromPath.
+     */
     @SuppressWarnings("unused")
     @ReactMethod
-    public void stat(String path, Promise promise) {
-        try {
-            File file = new File(path);
-            WritableMap res = Arguments.createMap();
-            if (file.isFile()) {
-                res.putString("type", "file");
-                res.putInt("length", (int) file.length());
-                res.putDouble("lastModified", file.lastModified());
-            } else if (file.isDirectory()) {
-                res.putString("type", "directory");
-                res.putDouble("lastModified", file.lastModified());
+    public void updateImageFile(String fromPath, String toPath, ReadableMap args, Promise promise) {
+        Operation op = startOperation(args);
+        execute(imageExecutor, promise, op, () -> {
+            try {
+                Bitmap bmp = transformImage(null, fromPath, args, op);
+                Encoding encoding = new Encoding(args);
+                WritableMap res = Arguments.createMap();
+                try {
+                    res.putInt("width", bmp.getWidth());
+                    res.putInt("height", bmp.getHeight());
+                    res.putDouble("size", writeImageFile(bmp, encoding, toPath));
+                    res.putString("type", encoding.mimeType);
+                } finally {
+                    bitmapPool.put(bmp);
+                }
+                op.progress(3, 3);
+                promise.resolve(res);
+            } catch (CancellationException e) {
+                promise.reject("ECANCELLED", e.getMessage(), e);
+            } catch (Exception e) {
+                promise.reject(e);
             }
-            promise.resolve(res);
-        } catch (Exception e) {
-            promise.reject(e);
-        }
+        });
     }
 
-    @SuppressWarnings("unused")
-    @ReactMethod
-    public void chmod(String path, int mode, Promise promise) {
-        try {
-            File file = new File(path);
-            // executable: 1 = execute, 2 = write, 4 = read
-            boolean executable = (mode & 73) > 0;
-            boolean writable = (mode & 146) > 0;
-            boolean readable = (mode & 292) > 0;
-            boolean otherExecutable = (mode & 1) > 0;
-            boolean otherWritable = (mode & 2) > 0;
-            boolean otherReadable = (mode & 4) > 0;
-            if (!file.setExecutable(executable, !otherExecutable))
-                throw new IOException("chmod failed");
-            if (!file.setReadable(readable, !otherReadable)) throw new IOException("chmod failed");
-            if (!file.setWritable(writable, !otherReadable)) throw new IOException("chmod failed");
-            promise.resolve(null);
-        } catch (Exception e) {
-            promise.reject(e);
+    private static final class ImageOutput {
+        final ReadableMap args;
+        final Encoding encoding;
+        // scale from the oriented source image
+        final float scale;
+        final int width;
+        final int height;
+        final float translateX;
+        final float translateY;
+        // decode separately into a hardware bitmap (api 28+)
+        final boolean preview;
+        WritableMap result;
+
+        ImageOutput(ReadableMap args, ImageInfo info) throws IOException {
+            this.args = args;
+            encoding = new Encoding(args);
+            preview = args.hasKey("preview") && args.getBoolean("preview");
+            float sourceWidth = info.getOrientedWidth();
+            float sourceHeight = info.getOrientedHeight();
+            float maxWidth = (float) args.getDouble("maxWidth");
+            float maxHeight = (float) args.getDouble("maxHeight");
+            boolean fill = args.hasKey("fill") && args.getBoolean("fill");
+            if (fill) {
+                scale = Math.max(maxWidth / sourceWidth, maxHeight / sourceHeight);
+                width = Math.max(1, Math.round(Math.min(sourceWidth * scale, maxWidth)));
+                height = Math.max(1, Math.round(Math.min(sourceHeight * scale, maxHeight)));
+            } else {
+                scale = Math.min(maxWidth / sourceWidth, maxHeight / sourceHeight);
+                width = Math.max(1, Math.round(sourceWidth * scale));
+                height = Math.max(1, Math.round(sourceHeight * scale));
+            }
+            translateX = (width - sourceWidth * scale) / 2;
+            translateY = (height - sourceHeight * scale) / 2;
         }
     }
 
-    @SuppressWarnings("unused")
-    @ReactMethod
-    public void getBlobHash(ReadableMap blob, String algorithm, Promise promise) {
-        try {
+    private WritableMap encodeImageOutput(Bitmap bmp, ImageOutput output) throws IOException {
+        WritableMap res = Arguments.createMap();
+        res.putInt("width", bmp.getWidth());
+        res.putInt("height", bmp.getHeight());
+        String path = output.args.hasKey("path") ? output.args.getString("path") : null;
+        if (path != null) {
+            res.putString("path", path);
+            res.putDouble("size", writeImageFile(bmp, output.encoding, path));
+            res.putString("type", output.encoding.mimeType);
+        } else {
+            byte[] data = encodeBitmap(bmp, output.encoding);
             BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
-            byte[] data = blobModule.resolve(blob);
-            if (data == null) {
-                promise.reject(new Error("blob not found"));
-                return;
-            }
-            if (verbose) Log.i("ReactNativeMoFs", "getBlobHash " + algorithm + " " + data.length);
-            MessageDigest digest;
-            switch (algorithm) {
-                case "md5":
-                    digest = MessageDigest.getInstance("MD5");
-                    break;
-                case "sha1":
-                    digest = MessageDigest.getInstance("SHA1");
-                    break;
-                case "sha256":
-                    digest = MessageDigest.getInstance("SHA-256");
-                    break;
-                case "sha512":
-                    digest = MessageDigest.getInstance("SHA-512");
-                    break;
-                default:
-                    throw new RuntimeException("invalid algorithm");
-            }
-            digest.reset();
-            byte[] tmp = digest.digest(data);
-            promise.resolve(getHexFromBytes(tmp));
-        } catch (Exception e) {
-            promise.reject(e);
+            WritableMap blob = Arguments.createMap();
+            blob.putInt("size", data.length);
+            blob.putInt("offset", 0);
+            blob.putString("blobId", blobModule.store(data));
+            blob.putString("type", output.encoding.mimeType);
+            res.putMap("blob", blob);
         }
+        return res;
     }
 
-    @SuppressWarnings("unused")
-    @ReactMethod
-    public void getBlobHmac(ReadableMap blob, String algorithm, String key, Promise promise) {
-        try {
-            BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
-            byte[] data = blobModule.resolve(blob);
-            if (data == null) {
-                promise.reject(new Error("blob not found"));
-                return;
-            }
-            byte[] keyData = Base64.decode(key, 0);
-            if (verbose) Log.i("ReactNativeMoFs", "getBlobHash " + algorithm + " " + data.length);
-            Mac mac;
-            switch (algorithm) {
-                case "sha1":
-                    mac = Mac.getInstance("HmacSHA1");
-                    break;
-                case "sha256":
-                    mac = Mac.getInstance("HmacSHA256");
-                    break;
-                case "sha512":
-                    mac = Mac.getInstance("HmacSHA512");
-                    break;
-                default:
-                    throw new RuntimeException("invalid algorithm");
-            }
-            mac.init(new SecretKeySpec(keyData, mac.getAlgorithm()));
-            mac.reset();
-            mac.update(data);
-            byte[] tmp = mac.doFinal();
-            promise.resolve(getHexFromBytes(tmp));
-        } catch (Exception e) {
-            promise.reject(e);
+    /**
+     * the oriented image, scaled to at least scale. on api 28+ ImageDecoder applies the exif
+     * orientation and scales while decoding (also reads heif, and avif from api 31).
+     * otherwise BitmapFactory with a sample size and a rotated copy.
+     */
+    private Bitmap decodeScaled(byte[] data, String path, ImageInfo info, float scale) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            return decodeScaledImageDecoder(data, path, scale);
         }
+        return decodeScaledBitmapFactory(data, path, info, scale);
     }
 
-    @SuppressWarnings("unused")
-    @ReactMethod
-    public void cryptBlob(ReadableMap blob, String algorithm, boolean encrypt, String key, String iv, Promise promise) {
-        try {
-            BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
-            byte[] data = blobModule.resolve(blob);
-            if (data == null) {
-                promise.reject(new Error("blob not found"));
-                return;
-            }
-            byte[] keyData = Base64.decode(key, 0);
-            byte[] ivData = Base64.decode(iv, 0);
-            Cipher cipher;
-            if ("aes-cbc".equals(algorithm)) {
-                cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-                cipher.init(
-                        encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE,
-                        new SecretKeySpec(keyData, cipher.getAlgorithm()),
-                        new IvParameterSpec(ivData)
+    private Bitmap decodeScaledImageDecoder(byte[] data, String path, float scale) throws IOException {
+        ImageDecoder.Source source = (data != null) ? ImageDecoder.createSource(ByteBuffer.wrap(data)) : ImageDecoder.createSource(new File(path));
+        return ImageDecoder.decodeBitmap(source, (decoder, imageInfo, src) -> {
+            // software and mutable so it can be drawn on a canvas and pooled afterwards
+            decoder.setAllocator(ImageDecoder.ALLOCATOR_SOFTWARE);
+            decoder.setMutableRequired(true);
+            if (scale > 0 && scale < 1) {
+                Size size = imageInfo.getSize();
+                decoder.setTargetSize(
+                    Math.max(1, (int) Math.ceil(size.getWidth() * scale)),
+                    Math.max(1, (int) Math.ceil(size.getHeight() * scale))
                 );
-            } else {
-                throw new RuntimeException("invalid algorithm");
             }
-            byte[] res = cipher.doFinal(data);
-            String blobId = blobModule.store(res);
-            WritableMap resBlob = Arguments.createMap();
-            resBlob.putInt("size", res.length);
-            resBlob.putInt("offset", 0);
-            resBlob.putString("blobId", blobId);
-            promise.resolve(resBlob);
-        } catch (Exception e) {
-            promise.reject(e);
-        }
+        });
     }
 
-    private Bitmap decodeBitmap(byte[] data) throws IOException {
-        Bitmap bmp = BitmapFactory.decodeByteArray(data, 0, data.length);
+    private Bitmap decodeScaledBitmapFactory(byte[] data, String path, ImageInfo info, float scale) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (scale > 0 && options.inSampleSize * 2 * scale <= 1) {
+            options.inSampleSize *= 2;
+        }
+        Bitmap bmp = decodePooled(options, info.width, info.height, (o) -> (data != null)
+            ? BitmapFactory.decodeByteArray(data, 0, data.length, o)
+            : BitmapFactory.decodeFile(path, o));
         if (bmp == null) {
             throw new IOException("failed to decode bitmap");
         }
-        ExifInterface exif = new ExifInterface(new ByteArrayInputStream(data));
-        int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
-        if (orientation != ExifInterface.ORIENTATION_NORMAL) {
-            Matrix matrix = new Matrix();
-            if (orientation == ExifInterface.ORIENTATION_ROTATE_90) {
-                matrix.postRotate(90);
-            } else if (orientation == ExifInterface.ORIENTATION_ROTATE_180) {
-                matrix.postRotate(180);
-            } else if (orientation == ExifInterface.ORIENTATION_ROTATE_270) {
-                matrix.postRotate(270);
-            }
-            bmp = Bitmap.createBitmap(bmp, 0, 0, bmp.getWidth(), bmp.getHeight(), matrix, true);
+        if (info.orientation != ExifInterface.ORIENTATION_NORMAL) {
+            ImageInfo decoded = new ImageInfo(bmp.getWidth(), bmp.getHeight(), info.orientation);
+            Bitmap rotated = bitmapPool.get(decoded.getOrientedWidth(), decoded.getOrientedHeight(), getConfig(bmp));
+            new Canvas(rotated).drawBitmap(bmp, decoded.getOrientationMatrix(), new Paint(Paint.FILTER_BITMAP_FLAG));
+            bitmapPool.put(bmp);
+            bmp = rotated;
         }
         return bmp;
     }
 
+    /**
+     * decodes directly to the output size and crop into a hardware bitmap. encoding it reads the
+     * pixels back into a temporary software copy of the output size, see getPreviewMemory.
+     */
+    private static long getPreviewMemory(ImageOutput output) {
+        return (long) output.width * output.height * 4;
+    }
+
+    private Bitmap decodePreview(byte[] data, String path, ImageOutput output) throws IOException {
+        ImageDecoder.Source source = (data != null) ? ImageDecoder.createSource(ByteBuffer.wrap(data)) : ImageDecoder.createSource(new File(path));
+        return ImageDecoder.decodeBitmap(source, (decoder, imageInfo, src) -> {
+            decoder.setAllocator(ImageDecoder.ALLOCATOR_HARDWARE);
+            Size size = imageInfo.getSize();
+            int width = Math.max(1, Math.round(size.getWidth() * output.scale));
+            int height = Math.max(1, Math.round(size.getHeight() * output.scale));
+            decoder.setTargetSize(width, height);
+            if (width != output.width || height != output.height) {
+                int left = Math.max(0, Math.round(-output.translateX));
+                int top = Math.max(0, Math.round(-output.translateY));
+                decoder.setCrop(new Rect(left, top, Math.min(width, left + output.width), Math.min(height, top + output.height)));
+            }
+        });
+    }
+
+    /**
+     * average decode time in ms of BitmapFactory and ImageDecoder (api 28+) for scaling
+     * path to args.scale, to compare both on a device.
+     */
     @SuppressWarnings("unused")
     @ReactMethod
-    public void getImageSize(ReadableMap blob, Promise promise) {
-        try {
-            BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
-            byte[] data = blobModule.resolve(blob);
-            if (data == null) {
-                promise.reject(new Error("blob not found"));
-                return;
+    public void benchmarkImageDecode(String path, ReadableMap args, Promise promise) {
+        execute(imageExecutor, promise, () -> {
+            try {
+                float scale = args.hasKey("scale") ? (float) args.getDouble("scale") : 1;
+                int iterations = args.hasKey("iterations") ? args.getInt("iterations") : 5;
+                ImageInfo info = getImageInfo(path);
+                WritableMap res = Arguments.createMap();
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    bitmapPool.put(decodeScaledBitmapFactory(null, path, info, scale));
+                }
+                res.putDouble("bitmapFactory", (System.nanoTime() - start) / 1e6 / iterations);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                    start = System.nanoTime();
+                    for (int i = 0; i < iterations; i++) {
+                        bitmapPool.put(decodeScaledImageDecoder(null, path, scale));
+                    }
+                    res.putDouble("imageDecoder", (System.nanoTime() - start) / 1e6 / iterations);
+                }
+                promise.resolve(res);
+            } catch (Exception e) {
+                promise.reject(e);
             }
-            Bitmap bmp = decodeBitmap(data);
-            WritableMap res = Arguments.createMap();
-            res.putDouble("width", bmp.getWidth());
-            res.putDouble("height", bmp.getHeight());
-            promise.resolve(res);
-        } catch (Exception e) {
-            promise.reject(e);
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void setImagePoolLimits(ReadableMap args) {
+        if (args.hasKey("maxBitmapBytes")) {
+            bitmapPool.setMaxBytes((long) args.getDouble("maxBitmapBytes"));
+        }
+        if (args.hasKey("maxBufferBytes")) {
+            encodeBufferPool.setMaxBytes((long) args.getDouble("maxBufferBytes"));
         }
     }
 
     @SuppressWarnings("unused")
     @ReactMethod
-    public void getExif(ReadableMap blob, Promise promise) {
-        try {
-            BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
-            byte[] data = blobModule.resolve(blob);
-            if (data == null) {
-                promise.reject(new Error("blob not found"));
-                return;
-            }
-            WritableMap res = Arguments.createMap();
-            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
-                ExifInterface exif = new ExifInterface(new ByteArrayInputStream(data));
-                for (Field field : ExifInterface.class.getDeclaredFields()) {
-                    if (!Modifier.isStatic(field.getModifiers())) continue;
-                    if (!Modifier.isPublic(field.getModifiers())) continue;
-                    if (!field.getName().startsWith("TAG_")) continue;
-                    try {
-                        String tag = (String) Objects.requireNonNull(field.get(exif));
-                        String value = exif.getAttribute(tag);
-                        if (value != null) {
-                            res.putString(field.getName(), value);
+    public void getImagePoolStats(Promise promise) {
+        WritableMap res = Arguments.createMap();
+        bitmapPool.getStats(res);
+        encodeBufferPool.getStats(res);
+        promise.resolve(res);
+    }
+
+    /**
+     * decodes the source once at the sample size of the largest output, then
+     * halves the bitmap step by step down to each output and encodes the outputs
+     * on the cpu pool.
+     */
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void processImage(ReadableMap source, ReadableArray outputs, ReadableMap options, Promise promise) {
+        Operation op = startOperation(options);
+        execute(imageExecutor, promise, op, () -> {
+            List<Future<?>> futures = new ArrayList<>();
+            try {
+                byte[] data = null;
+                String path = null;
+                ImageInfo info;
+                if (source.hasKey("blob")) {
+                    BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+                    data = blobModule.resolve(source.getMap("blob"));
+                    if (data == null) {
+                        promise.reject(new Error("blob not found"));
+                        return;
+                    }
+                    info = getImageInfo(data);
+                } else {
+                    path = source.getString("path");
+                    if (path == null) throw new RuntimeException("path == null");
+                    info = getImageInfo(path);
+                }
+
+                List<ImageOutput> list = new ArrayList<>();
+                for (int i = 0; i < outputs.size(); i++) {
+                    list.add(new ImageOutput(Objects.requireNonNull(outputs.getMap(i)), info));
+                }
+                int total = list.size() + 1;
+                AtomicInteger done = new AtomicInteger(0);
+                op.progress(0, total);
+
+                byte[] sourceData = data;
+                String sourcePath = path;
+                List<ImageOutput> sorted = new ArrayList<>();
+                for (ImageOutput output : list) {
+                    if (output.preview && Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && getPreviewMemory(output) <= IMAGE_JOB_MEMORY / 2) {
+                        // decoded on its own straight to the output size into graphics memory. encoded here
+                        // before the main decode, so the software readback stays within the budget of this job
+                        op.check();
+                        Bitmap out = decodePreview(sourceData, sourcePath, output);
+                        try {
+                            output.result = encodeImageOutput(out, output);
+                            op.progress(done.incrementAndGet(), total);
+                        } finally {
+                            out.recycle();
+                        }
+                    } else {
+                        sorted.add(output);
+                    }
+                }
+                Collections.sort(sorted, (a, b) -> Float.compare(b.scale, a.scale));
+
+                Bitmap bmp = sorted.isEmpty() ? null : decodeScaled(sourceData, sourcePath, info, sorted.get(0).scale);
+                Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+                op.check();
+                op.progress(done.incrementAndGet(), total);
+
+                for (ImageOutput output : sorted) {
+                    float targetWidth = info.getOrientedWidth() * output.scale;
+                    float targetHeight = info.getOrientedHeight() * output.scale;
+                    // halving keeps every source pixel in the filter, one big step would skip most of them
+                    while (bmp.getWidth() / 2 >= targetWidth && bmp.getHeight() / 2 >= targetHeight && bmp.getWidth() > 1 && bmp.getHeight() > 1) {
+                        Bitmap half = bitmapPool.get(bmp.getWidth() / 2, bmp.getHeight() / 2, getConfig(bmp));
+                        Matrix m = new Matrix();
+                        m.setScale((float) half.getWidth() / bmp.getWidth(), (float) half.getHeight() / bmp.getHeight());
+                        new Canvas(half).drawBitmap(bmp, m, paint);
+                        bitmapPool.put(bmp);
+                        bmp = half;
+                        op.check();
+                    }
+                    Bitmap out = bitmapPool.get(output.width, output.height, getConfig(bmp));
+                    Matrix m = new Matrix();
+                    m.setScale(targetWidth / bmp.getWidth(), targetHeight / bmp.getHeight());
+                    m.postTranslate(output.translateX, output.translateY);
+                    new Canvas(out).drawBitmap(bmp, m, paint);
+                    Callable<Void> encode = () -> {
+                        try {
+                            op.check();
+                            output.result = encodeImageOutput(out, output);
+                            op.progress(done.incrementAndGet(), total);
+                        } finally {
+                            bitmapPool.put(out);
                         }
-                    } catch (Exception e) {
-                        e.printStackTrace();
+                        return null;
+                    };
+                    try {
+                        futures.add(cpuExecutor.submit(encode));
+                    } catch (RejectedExecutionException e) {
+                        encode.call();
+                    }
+                }
+                if (bmp != null) {
+                    bitmapPool.put(bmp);
+                }
+
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
                     }
                 }
+                WritableArray res = Arguments.createArray();
+                for (ImageOutput output : list) {
+                    res.pushMap(output.result);
+                }
+                promise.resolve(res);
+            } catch (CancellationException e) {
+                for (Future<?> future : futures) {
+                    future.cancel(false);
+                }
+                promise.reject("ECANCELLED", e.getMessage(), e);
+            } catch (Exception e) {
+                for (Future<?> future : futures) {
+                    future.cancel(false);
+                }
+                promise.reject(e);
             }
-            promise.resolve(res);
-        } catch (Exception e) {
-            promise.reject(e);
-        }
+        });
     }
 
+    /**
+     * MINI_KIND video thumbnail, kept in the thumbnail cache like createFileThumbnail.
+     */
     @SuppressWarnings("unused")
     @ReactMethod
-    public void updateImage(ReadableMap blob, ReadableMap args, Promise promise) {
-        try {
-            BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
-            byte[] data = blobModule.resolve(blob);
-            if (data == null) {
-                promise.reject(new Error("blob not found"));
-                return;
-            }
-            Bitmap bmp = decodeBitmap(data);
-            int width = args.hasKey("width") ? args.getInt("width") : bmp.getWidth();
-            int height = args.hasKey("height") ? args.getInt("height") : bmp.getHeight();
-            Matrix m = new Matrix();
-            if (args.hasKey("matrix")) {
-                ReadableArray a = args.getArray("matrix");
-                if (a != null) {
-                    float[] v = new float[9];
-                    for (int i = 0; i < v.length; i++) {
-                        v[i] = (float) a.getDouble(i);
+    public void createThumbnail(ReadableMap args, Promise promise) {
+        execute(imageExecutor, promise, () -> {
+            try {
+                BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+                String path = Objects.requireNonNull(args.getString("path"));
+                Encoding encoding = new Encoding(args);
+                File file = new File(path);
+                String spec = path + "|" + file.length() + "|" + file.lastModified() + "|mini"
+                    + "|" + encoding.format + "|" + encoding.quality + "|" + encoding.targetBytes;
+                String key = getHexFromBytes(getMessageDigest("sha1").digest(spec.getBytes(StandardCharsets.UTF_8)));
+                byte[] output = file.isFile() ? getThumbnailCache().get(key) : null;
+                if (output == null) {
+                    Bitmap bitmap = ThumbnailUtils.createVideoThumbnail(path, MediaStore.Images.Thumbnails.MINI_KIND);
+                    if (bitmap == null) {
+                        throw new IOException("failed to create video thumbnail");
                     }
-                    m.setValues(v);
+                    output = encodeBitmap(bitmap, encoding);
+                    bitmap.recycle();
+                    getThumbnailCache().put(key, output);
                 }
+                String blobId = blobModule.store(output);
+                WritableMap blob2 = Arguments.createMap();
+                blob2.putInt("size", output.length);
+                blob2.putInt("offset", 0);
+                blob2.putString("blobId", blobId);
+                blob2.putString("type", encoding.mimeType);
+                promise.resolve(blob2);
+            } catch (Exception e) {
+                promise.reject(e);
             }
-            // this has problems if the image is made larger.
-            // Bitmap bmp2 = Bitmap.createBitmap(bmp, 0, 0, width, height, m, true);
-            Bitmap bmp2 = Bitmap.createBitmap(width, height, bmp.getConfig());
-            Canvas canvas = new Canvas(bmp2);
-            canvas.drawBitmap(bmp, m, null);
+        });
+    }
 
-            int quality = args.hasKey("quality") ? (int) (args.getDouble("quality") * 100) : 100;
-            Bitmap.CompressFormat format;
-            String mimeType;
-            if (args.hasKey("encoding") && "png".equals(args.getString("encoding"))) {
-                format = Bitmap.CompressFormat.PNG;
-                mimeType = "image/png";
-            } else if (args.hasKey("encoding") && "webp".equals(args.getString("encoding"))) {
-                format = Bitmap.CompressFormat.WEBP;
-                mimeType = "image/webp";
-            } else {
-                format = Bitmap.CompressFormat.JPEG;
-                mimeType = "image/jpeg";
+    /**
+     * thumbnail of an image or video file fitted into args.maxWidth x args.maxHeight. cached in
+     * memory and in the cache dir by path, file size, mtime and output arguments unless args.cache
+     * is false.
+     */
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void createFileThumbnail(String path, ReadableMap args, Promise promise) {
+        execute(imageExecutor, promise, () -> {
+            try {
+                File file = new File(path);
+                if (!file.isFile()) {
+                    throw new IOException("file not found");
+                }
+                Encoding encoding = new Encoding(args);
+                boolean useCache = !args.hasKey("cache") || args.getBoolean("cache");
+                String key = null;
+                byte[] output = null;
+                if (useCache) {
+                    String spec = path + "|" + file.length() + "|" + file.lastModified()
+                        + "|" + args.getDouble("maxWidth") + "x" + args.getDouble("maxHeight")
+                        + "|" + (args.hasKey("fill") && args.getBoolean("fill"))
+                        + "|" + encoding.format + "|" + encoding.quality + "|" + encoding.targetBytes;
+                    key = getHexFromBytes(getMessageDigest("sha1").digest(spec.getBytes(StandardCharsets.UTF_8)));
+                    output = getThumbnailCache().get(key);
+                }
+                if (output == null) {
+                    String mimeType = getMimeTypePath(path);
+                    Bitmap bmp;
+                    ImageInfo info;
+                    if (mimeType != null && mimeType.startsWith("video/")) {
+                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                            int maxSize = (int) Math.ceil(Math.max(args.getDouble("maxWidth"), args.getDouble("maxHeight")));
+                            bmp = ThumbnailUtils.createVideoThumbnail(file, new Size(maxSize, maxSize), null);
+                        } else {
+                            bmp = ThumbnailUtils.createVideoThumbnail(path, MediaStore.Images.Thumbnails.MINI_KIND);
+                        }
+                        if (bmp == null) {
+                            throw new IOException("failed to create video thumbnail");
+                        }
+                        info = new ImageInfo(bmp.getWidth(), bmp.getHeight(), 0);
+                    } else {
+                        info = getImageInfo(path);
+                        bmp = decodeScaled(null, path, info, new ImageOutput(args, info).scale);
+                    }
+                    ImageOutput thumbnail = new ImageOutput(args, info);
+                    Bitmap out = bitmapPool.get(thumbnail.width, thumbnail.height, getConfig(bmp));
+                    Matrix m = new Matrix();
+                    m.setScale(info.getOrientedWidth() * thumbnail.scale / bmp.getWidth(), info.getOrientedHeight() * thumbnail.scale / bmp.getHeight());
+                    m.postTranslate(thumbnail.translateX, thumbnail.translateY);
+                    new Canvas(out).drawBitmap(bmp, m, new Paint(Paint.FILTER_BITMAP_FLAG));
+                    bitmapPool.put(bmp);
+                    try {
+                        output = encodeBitmap(out, encoding);
+                    } finally {
+                        bitmapPool.put(out);
+                    }
+                    if (key != null) {
+                        getThumbnailCache().put(key, output);
+                    }
+                }
+                BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+                WritableMap blob = Arguments.createMap();
+                blob.putInt("size", output.length);
+                blob.putInt("offset", 0);
+                blob.putString("blobId", blobModule.store(output));
+                blob.putString("type", encoding.mimeType);
+                promise.resolve(blob);
+            } catch (Exception e) {
+                promise.reject(e);
             }
-            ByteArrayOutputStream stream = new ByteArrayOutputStream();
-            bmp2.compress(format, quality, stream);
-            byte[] output = stream.toByteArray();
-            String blobId = blobModule.store(output);
-            WritableMap blob2 = Arguments.createMap();
-            blob2.putInt("size", output.length);
-            blob2.putInt("offset", 0);
-            blob2.putString("blobId", blobId);
-            blob2.putString("type", mimeType);
-            if (blob.hasKey("name")) {
-                blob2.putString("name", blob.getString("name"));
-            }
-            promise.resolve(blob2);
-        } catch (Exception e) {
-            promise.reject(e);
+        });
+    }
+
+    /**
+     * fits a video frame into args.maxWidth x args.maxHeight, encodes it and either adds it to res
+     * or emits it as ReactNativeMoFsVideoFrame event if res is null.
+     */
+    private void handleVideoFrame(Bitmap bmp, ReadableMap args, Encoding encoding, Operation op, int index, double time, WritableArray res) throws IOException {
+        ImageOutput output = new ImageOutput(args, new ImageInfo(bmp.getWidth(), bmp.getHeight(), 0));
+        Bitmap out = bmp;
+        if (output.width != bmp.getWidth() || output.height != bmp.getHeight()) {
+            out = bitmapPool.get(output.width, output.height, getConfig(bmp));
+            Matrix m = new Matrix();
+            m.setScale(output.scale, output.scale);
+            m.postTranslate(output.translateX, output.translateY);
+            new Canvas(out).drawBitmap(bmp, m, new Paint(Paint.FILTER_BITMAP_FLAG));
+            bitmapPool.put(bmp);
+        }
+        byte[] data;
+        try {
+            data = encodeBitmap(out, encoding);
+        } finally {
+            bitmapPool.put(out);
+        }
+        BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
+        WritableMap blob = Arguments.createMap();
+        blob.putInt("size", data.length);
+        blob.putInt("offset", 0);
+        blob.putString("blobId", blobModule.store(data));
+        blob.putString("type", encoding.mimeType);
+        WritableMap frame = Arguments.createMap();
+        frame.putInt("index", index);
+        if (time >= 0) frame.putDouble("time", time);
+        frame.putInt("width", output.width);
+        frame.putInt("height", output.height);
+        frame.putMap("blob", blob);
+        if (res != null) {
+            res.pushMap(frame);
+        } else {
+            frame.putString("requestId", op.requestId);
+            getReactApplicationContext().getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class).emit(
+                    "ReactNativeMoFsVideoFrame",
+                    frame
+            );
         }
     }
 
+    /**
+     * frames of a video at args.times (ms) or args.frameCount frames from args.frameIndex (api 28+),
+     * fitted into args.maxWidth x args.maxHeight. one retriever is used for all frames. with
+     * args.stream and args.requestId every frame is emitted as event when ready and the result
+     * is empty.
+     */
     @SuppressWarnings("unused")
     @ReactMethod
-    public void createThumbnail(ReadableMap args, Promise promise) {
-        try {
-            BlobModule blobModule = Objects.requireNonNull(getReactApplicationContext().getNativeModule(BlobModule.class));
-            String path = args.getString("path");
-            Bitmap bitmap = ThumbnailUtils.createVideoThumbnail(path, MediaStore.Images.Thumbnails.MINI_KIND);
-            int quality = args.hasKey("quality") ? (int) (args.getDouble("quality") * 100) : 100;
-            Bitmap.CompressFormat format;
-            String mimeType;
-            if (args.hasKey("encoding") && "png".equals(args.getString("encoding"))) {
-                format = Bitmap.CompressFormat.PNG;
-                mimeType = "image/png";
-            } else if (args.hasKey("encoding") && "webp".equals(args.getString("encoding"))) {
-                format = Bitmap.CompressFormat.WEBP;
-                mimeType = "image/webp";
-            } else {
-                format = Bitmap.CompressFormat.JPEG;
-                mimeType = "image/jpeg";
+    public void getVideoFrames(String path, ReadableMap args, Promise promise) {
+        Operation op = startOperation(args);
+        execute(imageExecutor, promise, op, () -> {
+            MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+            try {
+                retriever.setDataSource(path);
+                Encoding encoding = new Encoding(args);
+                boolean stream = args.hasKey("stream") && args.getBoolean("stream") && op.requestId != null;
+                WritableArray res = Arguments.createArray();
+                if (args.hasKey("frameIndex")) {
+                    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.P) {
+                        throw new IOException("frameIndex requires android 9");
+                    }
+                    int start = args.getInt("frameIndex");
+                    int count = args.hasKey("frameCount") ? args.getInt("frameCount") : 1;
+                    op.progress(0, count);
+                    MediaMetadataRetriever.BitmapParams params = new MediaMetadataRetriever.BitmapParams();
+                    params.setPreferredConfig(Bitmap.Config.ARGB_8888);
+                    for (int i = 0; i < count; i++) {
+                        op.check();
+                        // one full size frame at a time, handleVideoFrame scales and recycles it before the next
+                        Bitmap bmp = retriever.getFrameAtIndex(start + i, params);
+                        if (bmp == null) {
+                            throw new IOException("no frame at index " + (start + i));
+                        }
+                        handleVideoFrame(bmp, args, encoding, op, start + i, -1, stream ? null : res);
+                        op.progress(i + 1, count);
+                    }
+                } else {
+                    ReadableArray times = Objects.requireNonNull(args.getArray("times"));
+                    boolean exact = args.hasKey("exact") && args.getBoolean("exact");
+                    int option = exact ? MediaMetadataRetriever.OPTION_CLOSEST : MediaMetadataRetriever.OPTION_CLOSEST_SYNC;
+                    int maxWidth = (int) Math.ceil(args.getDouble("maxWidth"));
+                    int maxHeight = (int) Math.ceil(args.getDouble("maxHeight"));
+                    boolean fill = args.hasKey("fill") && args.getBoolean("fill");
+                    op.progress(0, times.size());
+                    for (int i = 0; i < times.size(); i++) {
+                        op.check();
+                        long timeUs = (long) (times.getDouble(i) * 1000);
+                        Bitmap bmp;
+                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1 && !fill) {
+                            // decoded straight to the size that fits, keeping the aspect ratio
+                            bmp = retriever.getScaledFrameAtTime(timeUs, option, maxWidth, maxHeight);
+                        } else {
+                            bmp = retriever.getFrameAtTime(timeUs, option);
+                        }
+                        if (bmp == null) {
+                            throw new IOException("no frame at " + times.getDouble(i));
+                        }
+                        handleVideoFrame(bmp, args, encoding, op, i, times.getDouble(i), stream ? null : res);
+                        op.progress(i + 1, times.size());
+                    }
+                }
+                promise.resolve(res);
+            } catch (CancellationException e) {
+                promise.reject("ECANCELLED", e.getMessage(), e);
+            } catch (Exception e) {
+                promise.reject(e);
+            } finally {
+                try {
+                    retriever.release();
+                } catch (Exception e) {
+                    Log.w("ReactNativeMoFs", "release failed", e);
+                }
             }
-            ByteArrayOutputStream stream = new ByteArrayOutputStream();
-            bitmap.compress(format, quality, stream);
-            byte[] output = stream.toByteArray();
-            String blobId = blobModule.store(output);
-            WritableMap blob2 = Arguments.createMap();
-            blob2.putInt("size", output.length);
-            blob2.putInt("offset", 0);
-            blob2.putString("blobId", blobId);
-            blob2.putString("type", mimeType);
-            promise.resolve(blob2);
-        } catch (Exception e) {
-            promise.reject(e);
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void setThumbnailCacheLimits(ReadableMap args) {
+        ThumbnailCache cache = getThumbnailCache();
+        synchronized (cache) {
+            cache.setLimits(
+                args.hasKey("maxMemoryBytes") ? (long) args.getDouble("maxMemoryBytes") : cache.maxMemoryBytes,
+                args.hasKey("maxDiskBytes") ? (long) args.getDouble("maxDiskBytes") : cache.maxDiskBytes
+            );
         }
     }
 
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void getThumbnailCacheStats(Promise promise) {
+        execute(ioExecutor, promise, () -> {
+            WritableMap res = Arguments.createMap();
+            getThumbnailCache().getStats(res);
+            promise.resolve(res);
+        });
+    }
+
+    @SuppressWarnings("unused")
+    @ReactMethod
+    public void clearThumbnailCache(Promise promise) {
+        execute(ioExecutor, promise, () -> {
+            getThumbnailCache().clear();
+            promise.resolve(null);
+        });
+    }
+
     @SuppressWarnings("unused")
     @ReactMethod
     public void getProviderUri(String path, Promise promise) {
@@ -4,8 +4,20 @@ import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
+import android.os.ProxyFileDescriptorCallback;
+import android.os.SystemClock;
+import android.os.storage.StorageManager;
+import android.provider.OpenableColumns;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+import android.util.LruCache;
 import android.webkit.MimeTypeMap;
 
 import com.facebook.react.ReactApplication;
@@ -17,12 +29,64 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 import javax.annotation.Nonnull;
 
 public final class ReactNativeMoFsProvider extends ContentProvider {
 
+    // kept until the react instance is reloaded
+    private volatile ReactContext reactContext;
+    private File filesDir;
+    private File cacheDir;
+
+    private static final class FileStat {
+        final boolean exists;
+        final long length;
+        final long time;
+
+        FileStat(File file) {
+            exists = file.exists();
+            length = file.length();
+            time = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private static final long STAT_CACHE_TTL = 2000;
+    // query and openFile usually follow each other for the same file
+    private final LruCache<String, FileStat> statCache = new LruCache<>(64);
+
+    // open writable descriptors per path. entries stay forever before kitkat, where closes cannot be observed
+    private final Map<String, Integer> writers = new HashMap<>();
+
+    private FileStat getStat(File file) {
+        String key = file.getAbsolutePath();
+        synchronized (writers) {
+            // may be written through a descriptor any moment
+            if (writers.containsKey(key)) return new FileStat(file);
+        }
+        FileStat stat = statCache.get(key);
+        if (stat == null || SystemClock.elapsedRealtime() - stat.time > STAT_CACHE_TTL) {
+            stat = new FileStat(file);
+            // missing files are not cached, they may be created any moment
+            if (stat.exists) {
+                statCache.put(key, stat);
+            } else {
+                statCache.remove(key);
+            }
+        }
+        return stat;
+    }
+
     private ReactContext getReactContext() {
+        ReactContext cached = reactContext;
+        if (cached != null && cached.hasActiveReactInstance()) {
+            return cached;
+        }
         Context context = getContext();
         if (context == null) {
             throw new RuntimeException("getContext() null");
@@ -36,9 +100,33 @@ public final class ReactNativeMoFsProvider extends ContentProvider {
         if (reactContext == null) {
             throw new RuntimeException("reactContext null");
         }
+        this.reactContext = reactContext;
         return reactContext;
     }
 
+    private synchronized File getRootDir(boolean files) {
+        if (filesDir == null) {
+            Context context = Objects.requireNonNull(getContext());
+            filesDir = context.getFilesDir();
+            cacheDir = context.getCacheDir();
+        }
+        return files ? filesDir : cacheDir;
+    }
+
+    /**
+     * the file for /files/, /cache/ and /root/ uris, null for blobs.
+     */
+    private File getFile(String path) throws FileNotFoundException {
+        if (path.startsWith("/files/") || path.startsWith("/cache/")) {
+            return getFileInDir(getRootDir(path.startsWith("/files/")), path.substring(path.indexOf('/', 1) + 1));
+        } else if (path.startsWith("/root/")) {
+            return new File("/", path.substring("/root/".length()));
+        } else if (path.startsWith("/blob/")) {
+            return null;
+        }
+        throw new FileNotFoundException("path " + path + " not found");
+    }
+
     @Override
     public boolean onCreate() {
         return true;
@@ -46,7 +134,45 @@ public final class ReactNativeMoFsProvider extends ContentProvider {
 
     @Override
     public Cursor query(@Nonnull Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
-        return null;
+        String path = uri.getPath();
+        if (path == null) return null;
+        String name;
+        long size;
+        try {
+            File file = getFile(path);
+            if (file != null) {
+                FileStat stat = getStat(file);
+                if (!stat.exists) return null;
+                name = file.getName();
+                size = stat.length;
+            } else {
+                String type = uri.getQueryParameter("type");
+                String extension = (type != null) ? MimeTypeMap.getSingleton().getExtensionFromMimeType(type) : null;
+                name = uri.getLastPathSegment() + ((extension != null) ? "." + extension : "");
+                String sizeParam = uri.getQueryParameter("size");
+                size = (sizeParam != null) ? Long.parseLong(sizeParam) : -1;
+            }
+        } catch (FileNotFoundException | NumberFormatException e) {
+            return null;
+        }
+        if (projection == null) {
+            projection = new String[] { OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE };
+        }
+        // only the known columns, like FileProvider
+        List<String> columns = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        for (String column : projection) {
+            if (OpenableColumns.DISPLAY_NAME.equals(column)) {
+                columns.add(column);
+                values.add(name);
+            } else if (OpenableColumns.SIZE.equals(column) && size >= 0) {
+                columns.add(column);
+                values.add(size);
+            }
+        }
+        MatrixCursor cursor = new MatrixCursor(columns.toArray(new String[0]), 1);
+        cursor.addRow(values.toArray());
+        return cursor;
     }
 
     @Override
@@ -76,46 +202,191 @@ public final class ReactNativeMoFsProvider extends ContentProvider {
         }
     }
 
-    @Override
-    public ParcelFileDescriptor openFile(@Nonnull Uri uri, String mode) throws FileNotFoundException {
-        if (!mode.equals("r")) {
-            throw new FileNotFoundException("Cannot open " + uri.toString() + " in mode '" + mode + "'");
+    /**
+     * ParcelFileDescriptor mode for "r", "w", "wt", "wa", "rw" and "rwt".
+     */
+    private static int parseMode(String mode) throws FileNotFoundException {
+        switch (mode) {
+            case "r":
+                return ParcelFileDescriptor.MODE_READ_ONLY;
+            case "w":
+            case "wt":
+                return ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE;
+            case "wa":
+                return ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_APPEND;
+            case "rw":
+                return ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE;
+            case "rwt":
+                return ParcelFileDescriptor.MODE_READ_WRITE | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE;
+            default:
+                throw new FileNotFoundException("invalid mode '" + mode + "'");
         }
-        String path = uri.getPath();
-        if (path == null) throw new RuntimeException("path == null");
-        if (path.startsWith("/files/")) {
-            File file = new File(getReactContext().getFilesDir(), path.substring("/files/".length()));
-            if (!file.exists()) throw new FileNotFoundException("file " + file.getAbsolutePath() + " not found");
-            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
-        } else if (path.startsWith("/cache/")) {
-            File file = new File(getReactContext().getCacheDir(), path.substring("/cache/".length()));
-            if (!file.exists()) throw new FileNotFoundException("file " + file.getAbsolutePath() + " not found");
-            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
-        } else if (path.startsWith("/root/")) {
-            File file = new File("/", path.substring("/root/".length()));
-            if (!file.exists()) throw new FileNotFoundException("file " + file.getAbsolutePath() + " not found");
-            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
-        } else if (path.startsWith("/blob/")) {
-            BlobModule blobModule = getReactContext().getNativeModule(BlobModule.class);
-            if (blobModule == null) {
-                throw new RuntimeException("No blob module associated with BlobProvider");
+    }
+
+    /**
+     * file below dir, refusing paths that leave dir.
+     */
+    private static File getFileInDir(File dir, String name) throws FileNotFoundException {
+        File file = new File(dir, name);
+        try {
+            String root = dir.getCanonicalPath() + File.separator;
+            if (!file.getCanonicalPath().startsWith(root)) {
+                throw new FileNotFoundException("path " + name + " outside of " + dir.getAbsolutePath());
             }
-            final byte[] data = blobModule.resolve(uri);
-            if (data == null) {
-                throw new FileNotFoundException("Cannot open " + uri.toString() + ", blob not found.");
+        } catch (IOException e) {
+            throw new FileNotFoundException(e.getMessage());
+        }
+        return file;
+    }
+
+    // serves the reads of proxy file descriptors (api 26+) and close callbacks of writable descriptors.
+    // started on first use and quit when no descriptor needs it anymore.
+    private HandlerThread proxyThread;
+    private Handler proxyHandler;
+    private int proxyUsers = 0;
+
+    private synchronized Handler acquireProxyHandler() {
+        if (proxyHandler == null) {
+            proxyThread = new HandlerThread("ReactNativeMoFsProvider");
+            proxyThread.start();
+            proxyHandler = new Handler(proxyThread.getLooper());
+        }
+        proxyUsers++;
+        return proxyHandler;
+    }
+
+    private synchronized void releaseProxyHandler() {
+        if (--proxyUsers > 0) return;
+        proxyThread.quit();
+        proxyThread = null;
+        proxyHandler = null;
+    }
+
+    private void addWriter(String key) {
+        synchronized (writers) {
+            Integer count = writers.get(key);
+            writers.put(key, (count == null) ? 1 : count + 1);
+        }
+        statCache.remove(key);
+    }
+
+    private void removeWriter(String key) {
+        synchronized (writers) {
+            Integer count = writers.get(key);
+            if (count == null || count <= 1) {
+                writers.remove(key);
+            } else {
+                writers.put(key, count - 1);
             }
-            return this.openPipeHelper(uri, "image/jpeg", null, data, (output, uri1, mimeType, opts, args) -> {
-                try {
-                    FileOutputStream fos = new FileOutputStream(output.getFileDescriptor());
-                    fos.write(args);
-                    fos.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+        }
+        statCache.remove(key);
+    }
+
+    /**
+     * writable descriptor for file. query does not use cached stats for it until it is closed.
+     */
+    private ParcelFileDescriptor openWritable(File file, int mode) throws IOException {
+        String key = file.getAbsolutePath();
+        addWriter(key);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return ParcelFileDescriptor.open(file, mode);
+        }
+        Handler handler = acquireProxyHandler();
+        try {
+            return ParcelFileDescriptor.open(file, mode, handler, (e) -> {
+                removeWriter(key);
+                releaseProxyHandler();
             });
+        } catch (IOException | RuntimeException e) {
+            removeWriter(key);
+            releaseProxyHandler();
+            throw e;
+        }
+    }
 
-        } else {
-            throw new FileNotFoundException("path " + path + " not found");
+    /**
+     * seekable read only descriptor for data. on api 26+ reads are served from memory,
+     * otherwise data is written to an unlinked file in the cache dir.
+     */
+    private ParcelFileDescriptor openData(byte[] data) throws IOException {
+        Context context = Objects.requireNonNull(getContext());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            StorageManager storageManager = (StorageManager) context.getSystemService(Context.STORAGE_SERVICE);
+            Handler handler = acquireProxyHandler();
+            try {
+                return storageManager.openProxyFileDescriptor(ParcelFileDescriptor.MODE_READ_ONLY, new ProxyFileDescriptorCallback() {
+                    @Override
+                    public long onGetSize() {
+                        return data.length;
+                    }
+
+                    @Override
+                    public int onRead(long offset, int size, byte[] buffer) throws ErrnoException {
+                        if (offset < 0) throw new ErrnoException("onRead", OsConstants.EINVAL);
+                        if (offset >= data.length) return 0;
+                        int length = (int) Math.min(size, data.length - offset);
+                        System.arraycopy(data, (int) offset, buffer, 0, length);
+                        return length;
+                    }
+
+                    @Override
+                    public void onRelease() {
+                        releaseProxyHandler();
+                    }
+                }, handler);
+            } catch (IOException | RuntimeException e) {
+                releaseProxyHandler();
+                throw e;
+            }
+        }
+        File file = File.createTempFile("blob", ".tmp", context.getCacheDir());
+        try {
+            try (FileOutputStream fos = new FileOutputStream(file)) {
+                fos.write(data);
+            }
+            return ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY);
+        } finally {
+            // the open descriptor keeps the data readable
+            boolean ignore = file.delete();
+        }
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(@Nonnull Uri uri, String mode) throws FileNotFoundException {
+        int parsedMode = parseMode(mode);
+        boolean readOnly = parsedMode == ParcelFileDescriptor.MODE_READ_ONLY;
+        String path = uri.getPath();
+        if (path == null) throw new FileNotFoundException("path == null");
+        File file = getFile(path);
+        if (file != null) {
+            if (!readOnly && path.startsWith("/root/")) {
+                throw new FileNotFoundException("Cannot open " + uri.toString() + " in mode '" + mode + "'");
+            }
+            if (readOnly) return ParcelFileDescriptor.open(file, parsedMode);
+            try {
+                return openWritable(file, parsedMode);
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new FileNotFoundException(e.getMessage());
+            }
+        }
+        if (!readOnly) {
+            throw new FileNotFoundException("Cannot open " + uri.toString() + " in mode '" + mode + "'");
+        }
+        BlobModule blobModule = getReactContext().getNativeModule(BlobModule.class);
+        if (blobModule == null) {
+            throw new FileNotFoundException("No blob module associated with BlobProvider");
+        }
+        final byte[] data = blobModule.resolve(uri);
+        if (data == null) {
+            throw new FileNotFoundException("Cannot open " + uri.toString() + ", blob not found.");
+        }
+        try {
+            return openData(data);
+        } catch (IOException e) {
+            Log.w("ReactNativeMoFs", "openFile " + uri, e);
+            throw new FileNotFoundException("Cannot open " + uri.toString() + ": " + e.getMessage());
         }
     }
 
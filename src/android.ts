@@ -16,6 +16,94 @@ interface Intent {
   extras?: { [k: string]: any };
 }
 
+interface OperationOptions {
+  /** id for cancel() and ReactNativeMoFsProgress events */
+  requestId?: string;
+}
+
+interface ProgressEvent {
+  requestId: string;
+  done: number;
+  /** missing if unknown */
+  total?: number;
+}
+
+interface AppendStreamStats {
+  bytesWritten: number;
+  bytesBuffered: number;
+  flushCount: number;
+  lastFlushLatency: number;
+  maxFlushLatency: number;
+}
+
+interface ImagePoolStats {
+  bitmapHits: number;
+  bitmapMisses: number;
+  bitmapEvictions: number;
+  bitmapCount: number;
+  bitmapBytes: number;
+  maxBitmapBytes: number;
+  bufferHits: number;
+  bufferMisses: number;
+  bufferCount: number;
+  bufferBytes: number;
+  maxBufferBytes: number;
+}
+
+interface VideoFrame {
+  /** index in times, or frame index */
+  index: number;
+  /** ms, for frames requested by time */
+  time?: number;
+  width: number;
+  height: number;
+  blob: BlobData;
+}
+
+interface VideoFrameEvent extends VideoFrame {
+  requestId: string;
+}
+
+interface WalkEntry {
+  /** relative to the walked directory */
+  path: string;
+  type: 'file'|'directory'|'symlink'|'other';
+  /** with includeStat, files only */
+  size?: number;
+  /** with includeStat */
+  lastModified?: number;
+  /** set on directories that could not be read */
+  error?: string;
+}
+
+interface TransferResult {
+  bytes: number;
+  /** ms */
+  duration: number;
+  bytesPerSecond: number;
+}
+
+interface TreeResult {
+  files: number;
+  directories: number;
+  bytes: number;
+  errorCount: number;
+  /** the first 100 failed entries, path relative to the tree root */
+  errors: { path: string; error: string; }[];
+}
+
+interface ThumbnailCacheStats {
+  memoryHits: number;
+  diskHits: number;
+  misses: number;
+  hitRate: number;
+  memoryCount: number;
+  memoryBytes: number;
+  maxMemoryBytes: number;
+  diskBytes: number;
+  maxDiskBytes: number;
+}
+
 export interface Module {
   authorities: string;
 
@@ -29,6 +117,9 @@ export interface Module {
 
   setVerbose(verbose: boolean): void;
 
+  /** cancel the operation started with requestId. resolves false if it is not running */
+  cancel(requestId: string): Promise<boolean>;
+
   getInitialIntent(): Promise<Intent>;
 
   getMimeTypeForPath(path: string): Promise<string|null>;
@@ -37,16 +128,63 @@ export interface Module {
   readBlob(blob: BlobData, mode: 'base64'|'utf8'): Promise<string>;
   createBlob(str: string, mode: 'base64'|'utf8'): Promise<BlobData>;
 
-  getBlobHash(blob: BlobData, algorithm: 'md5'|'sha1'|'sha256'|'sha512'): Promise<string>;
+  getBlobHash(blob: BlobData, algorithm: 'md5'|'sha1'|'sha256'|'sha512', options: OperationOptions|null): Promise<string>;
+  getFileHash(path: string, algorithm: 'md5'|'sha1'|'sha256'|'sha512', options: { offset?: number; length?: number; } & OperationOptions|null): Promise<string>;
+  getHashes(
+    source: { blob: BlobData; } | { path: string; offset?: number; length?: number; },
+    algorithms: { algorithm: 'md5'|'sha1'|'sha256'|'sha512'; key?: string; name?: string; }[],
+    options: OperationOptions|null
+  ): Promise<{ [name: string]: string }>;
+  getTreeHash(
+    source: { blob: BlobData; } | { path: string; offset?: number; length?: number; },
+    args: { algorithm?: 'md5'|'sha1'|'sha256'|'sha512'; chunkSize?: number; } & OperationOptions
+  ): Promise<{ root: string; chunkSize: number; chunks: string[]; }>;
   getBlobHmac(blob: BlobData, algorithm: 'sha1'|'sha256'|'sha512', key: string): Promise<string>;
-  cryptBlob(blob: BlobData, algorithm: 'aes-cbc', encrypt: boolean, key: string, iv: string): Promise<BlobData>;
+  cryptBlob(blob: BlobData, algorithm: 'aes-cbc'|'aes-ctr'|'aes-gcm', encrypt: boolean, key: string, iv: string, options: OperationOptions|null): Promise<BlobData>;
+  /** aes-gcm decryption is not streamed and rejects files over 64 MB */
+  cryptFile(fromPath: string, toPath: string, algorithm: 'aes-cbc'|'aes-ctr'|'aes-gcm', encrypt: boolean, key: string, iv: string, options: OperationOptions|null): Promise<void>;
 
-  readFile(args: { path: string; size?: number; offset?: number; }): Promise<BlobData>;
-  writeFile(args: { path: string; blob: BlobData, offset?: number; truncate?: boolean; }): Promise<BlobData>;
+  /**
+   * cached keeps the file open between calls. only writes, renames and deletes through this module close it,
+   * reads of files changed from outside (other processes, other libraries) may return stale data.
+   */
+  readFile(args: { path: string; size?: number; offset?: number; cached?: boolean; } & OperationOptions): Promise<BlobData>;
+  writeFile(args: { path: string; blob: BlobData, offset?: number; truncate?: boolean; } & OperationOptions): Promise<BlobData>;
+  closeFileCache(): Promise<void>;
 
-  deleteFile(path: string, recursive: boolean): Promise<void>;
+  openReadStream(args: { path: string; offset?: number; chunkSize?: number; }): Promise<number>;
+  readStream(id: number): Promise<BlobData|null>;
+  closeReadStream(id: number): Promise<void>;
+
+  openAppendStream(args: { path: string; bufferSize?: number; flushInterval?: number; fsync?: boolean; }): Promise<number>;
+  appendStream(id: number, args: { blob: BlobData; } | { str: string; mode: 'base64'|'utf8'; }): Promise<void>;
+  flushAppendStream(id: number, fsync: boolean): Promise<AppendStreamStats>;
+  closeAppendStream(id: number): Promise<AppendStreamStats>;
+
+  /** r: read, w: truncate and write, a: append, rw: read and write. idle handles are closed after 5 minutes */
+  openFile(path: string, mode: 'r'|'w'|'a'|'rw'): Promise<number>;
+  /** reads at offset if given (without moving the file position), otherwise at the current position. null at end of file */
+  readHandle(handle: number, args: { size: number; offset?: number; }): Promise<BlobData|null>;
+  writeHandle(handle: number, args: { blob: BlobData; offset?: number; }): Promise<void>;
+  fsyncHandle(handle: number): Promise<void>;
+  closeHandle(handle: number): Promise<void>;
+
+  deleteFile(path: string, recursive: boolean, options: OperationOptions|null): Promise<void>;
+  /** deletes files in parallel, does not stop at the first failure */
+  deleteTree(path: string, options: OperationOptions|null): Promise<TreeResult>;
+  /** copies the contents of fromPath into toPath in parallel. progress is in bytes */
+  copyTree(fromPath: string, toPath: string, options: { overwrite?: boolean; } & OperationOptions|null): Promise<TreeResult>;
   renameFile(fromPath: string, toPath: string): Promise<void>;
+  /** copies with transferTo into a temp file that is renamed over toPath */
+  copyFile(fromPath: string, toPath: string, options: { overwrite?: boolean; preserveMtime?: boolean; } & OperationOptions|null): Promise<TransferResult>;
+  /** renames, or copies and deletes fromPath if that fails (e.g. across mount points) */
+  moveFile(fromPath: string, toPath: string, options: { overwrite?: boolean; } & OperationOptions|null): Promise<TransferResult & { renamed: boolean; }>;
   listDir(path: string): Promise<string[]>;
+  /** symlinks are not followed. glob filtering is done by Fs.walkDir */
+  openWalk(path: string, args: { maxDepth?: number; includeStat?: boolean; pageSize?: number; }): Promise<number>;
+  /** next page of entries, null at the end */
+  readWalk(id: number): Promise<WalkEntry[]|null>;
+  closeWalk(id: number): Promise<void>;
   createDir(path: string): Promise<void>;
   stat(path: string): Promise<{
     type?: 'file'|'directory';
@@ -56,20 +194,90 @@ export interface Module {
   chmod(path: string, mode: number): Promise<void>;
 
   getImageSize(blob: BlobData): Promise<{ width: number; height: number; }>;
-  getExif(blob: BlobData): Promise<any>;
+  /** reads only the file header, width and height are swapped for rotated images */
+  getFileImageSize(path: string): Promise<{ width: number; height: number; }>;
+  /** tags are TAG_* names from ExifInterface, all tags if null */
+  getExif(blob: BlobData, tags: string[]|null): Promise<any>;
+  /** reads only the exif segment of jpeg files */
+  getFileExif(path: string, tags: string[]|null): Promise<any>;
   updateImage(blob: BlobData, args: {
     width?: number;
     height?: number;
     matrix?: [number, number, number, number, number, number, number, number, number];
-    encoding?: 'jpeg'|'png'|'webp';
+    /** webp-lossless is rejected before android 10 */
+    encoding?: 'jpeg'|'png'|'webp'|'webp-lossy'|'webp-lossless';
+    /** lower quality until the result fits, rejected if quality 0 is still larger. makes webp lossy, rejected for png and webp-lossless */
+    targetBytes?: number;
     quality?: number;
-  }): Promise<BlobData>;
+  } & OperationOptions): Promise<BlobData>;
+  /** average ms per decode of path scaled to args.scale with BitmapFactory and ImageDecoder (api 28+) */
+  benchmarkImageDecode(path: string, args: { scale?: number; iterations?: number; }): Promise<{ bitmapFactory: number; imageDecoder?: number; }>;
+  /** limits for bitmaps and encode buffers kept for reuse by the image functions */
+  setImagePoolLimits(args: { maxBitmapBytes?: number; maxBufferBytes?: number; }): void;
+  getImagePoolStats(): Promise<ImagePoolStats>;
+  updateImageFile(fromPath: string, toPath: string, args: {
+    width?: number;
+    height?: number;
+    matrix?: [number, number, number, number, number, number, number, number, number];
+    /** webp-lossless is rejected before android 10 */
+    encoding?: 'jpeg'|'png'|'webp'|'webp-lossy'|'webp-lossless';
+    /** lower quality until the result fits, rejected if quality 0 is still larger. makes webp lossy, rejected for png and webp-lossless */
+    targetBytes?: number;
+    quality?: number;
+  } & OperationOptions): Promise<{ width: number; height: number; size: number; type: string; }>;
+  processImage(
+    source: { blob: BlobData; } | { path: string; },
+    outputs: {
+      maxWidth: number;
+      maxHeight: number;
+      fill?: boolean;
+      /** webp-lossless is rejected before android 10 */
+      encoding?: 'jpeg'|'png'|'webp'|'webp-lossy'|'webp-lossless';
+      /** lower quality until the result fits, rejected if quality 0 is still larger. makes webp lossy, rejected for png and webp-lossless */
+      targetBytes?: number;
+      quality?: number;
+      path?: string;
+      preview?: boolean;
+    }[],
+    options: OperationOptions|null
+  ): Promise<{ width: number; height: number; blob?: BlobData; path?: string; size?: number; }[]>;
   createThumbnail(args: {
     path: string;
-    encoding?: 'jpeg'|'png'|'webp';
+    /** webp-lossless is rejected before android 10 */
+    encoding?: 'jpeg'|'png'|'webp'|'webp-lossy'|'webp-lossless';
+    /** lower quality until the result fits, rejected if quality 0 is still larger. makes webp lossy, rejected for png and webp-lossless */
+    targetBytes?: number;
     quality?: number;
   }): Promise<BlobData>;
 
+  /** image or video thumbnail, cached in memory and in the cache dir unless cache is false */
+  createFileThumbnail(path: string, args: {
+    maxWidth: number;
+    maxHeight: number;
+    fill?: boolean;
+    /** webp-lossless is rejected before android 10 */
+    encoding?: 'jpeg'|'png'|'webp'|'webp-lossy'|'webp-lossless';
+    /** lower quality until the result fits, rejected if quality 0 is still larger. makes webp lossy, rejected for png and webp-lossless */
+    targetBytes?: number;
+    quality?: number;
+    cache?: boolean;
+  }): Promise<BlobData>;
+  /** frames at times (ms) or frameCount frames from frameIndex (api 28+). with stream and requestId frames are only emitted as ReactNativeMoFsVideoFrame */
+  getVideoFrames(path: string, args: ({ times: number[]; exact?: boolean; } | { frameIndex: number; frameCount?: number; }) & {
+    maxWidth: number;
+    maxHeight: number;
+    fill?: boolean;
+    /** webp-lossless is rejected before android 10 */
+    encoding?: 'jpeg'|'png'|'webp'|'webp-lossy'|'webp-lossless';
+    /** lower quality until the result fits, rejected if quality 0 is still larger. makes webp lossy, rejected for png and webp-lossless */
+    targetBytes?: number;
+    quality?: number;
+    stream?: boolean;
+  } & OperationOptions): Promise<VideoFrame[]>;
+  setThumbnailCacheLimits(args: { maxMemoryBytes?: number; maxDiskBytes?: number; }): void;
+  getThumbnailCacheStats(): Promise<ThumbnailCacheStats>;
+  clearThumbnailCache(): Promise<void>;
+
   getProviderUri(path: string): Promise<string>;
 
   sendIntentChooser(args: {
@@ -116,4 +324,6 @@ export const Module = (Platform.OS === 'android') ? NativeModules.ReactNativeMoF
 
 export const Events = Module ? new NativeEventEmitter(NativeModules.ReactNativeMoFs) as {
   addListener(eventType: 'ReactNativeMoFsNewIntent', listener: (event: Intent) => void): EmitterSubscription;
+  addListener(eventType: 'ReactNativeMoFsProgress', listener: (event: ProgressEvent) => void): EmitterSubscription;
+  addListener(eventType: 'ReactNativeMoFsVideoFrame', listener: (event: VideoFrameEvent) => void): EmitterSubscription;
 } : undefined;
@@ -36,9 +36,23 @@ export type Base64 = string;
 export type HexString = string;
 
 
-export interface CryptBlobArgs {
-  /** algorithm and mode */
-  algorithm: 'aes-cbc';
+export interface OperationOptions {
+  /** id to cancel the operation with Fs.cancel() and to match Fs.progress events (android only) */
+  requestId?: string;
+}
+
+export interface ProgressEvent {
+  /** requestId of the operation */
+  requestId: string;
+  /** units done, usually bytes */
+  done: number;
+  /** total units, undefined if unknown */
+  total?: number;
+}
+
+export interface CryptBlobArgs extends OperationOptions {
+  /** algorithm and mode. aes-ctr and aes-gcm (128 bit tag appended) are android only */
+  algorithm: 'aes-cbc'|'aes-ctr'|'aes-gcm';
   /** encryption / decryption */
   direction: 'encrypt'|'decrypt';
   /** key as base64 string or buffer */
@@ -47,30 +61,151 @@ export interface CryptBlobArgs {
   iv: Base64|ArrayBufferLike
 }
 
-export interface UpdateImageArgs {
+export interface HashArgs {
+  /** md5 / sha1 / sha256 / sha512. hmacs support sha1 / sha256 / sha512 */
+  algorithm: 'md5'|'sha1'|'sha256'|'sha512';
+  /** calculate a hmac with this key (base64 string or buffer) */
+  key?: Base64|ArrayBufferLike;
+  /** key in the result, defaults to the algorithm or hmac-algorithm */
+  name?: string;
+}
+
+export interface TreeHashArgs extends OperationOptions {
+  /** hash algorithm, defaults to sha256 */
+  algorithm?: 'md5'|'sha1'|'sha256'|'sha512';
+  /** bytes per chunk, defaults to 4 MiB */
+  chunkSize?: number;
+}
+
+export interface TreeHashResult {
+  /** merkle root over the chunk hashes */
+  root: HexString;
+  /** bytes per chunk */
+  chunkSize: number;
+  /** hash of every chunk */
+  chunks: HexString[];
+}
+
+export interface UpdateImageArgs extends OperationOptions {
   /** crop to width */
   width?: number;
   /** crop to height */
   height?: number;
   /** 3x3 matrix */
   matrix?: [number, number, number, number, number, number, number, number, number];
-  /** image output type */
-  encoding?: 'jpeg'|'png'|'webp';
+  /** image output type. webp is lossless at quality 1 without targetBytes, webp-lossless needs android 10 */
+  encoding?: 'jpeg'|'png'|'webp'|'webp-lossy'|'webp-lossless';
+  /** image output quality: 0(small file) to 1(large file) */
+  quality?: number;
+  /** lower the quality (android only) until the result is at most this many bytes. jpeg, webp (then always lossy) and webp-lossy, rejected for png and webp-lossless and if quality 0 is still larger */
+  targetBytes?: number;
+}
+
+export interface ResizeImageArgs extends OperationOptions {
+  /** new width */
+  maxWidth: number;
+  /** new height */
+  maxHeight: number;
+  /** crop image to fill area */
+  fill?: boolean;
+  /** image output type. webp is lossless at quality 1 without targetBytes, webp-lossless needs android 10 */
+  encoding?: 'jpeg'|'png'|'webp'|'webp-lossy'|'webp-lossless';
+  /** image output quality: 0(small file) to 1(large file) */
+  quality?: number;
+  /** lower the quality (android only) until the result is at most this many bytes. jpeg, webp (then always lossy) and webp-lossy, rejected for png and webp-lossless and if quality 0 is still larger */
+  targetBytes?: number;
+}
+
+export interface ImagePoolStats {
+  bitmapHits: number;
+  bitmapMisses: number;
+  bitmapEvictions: number;
+  bitmapCount: number;
+  bitmapBytes: number;
+  maxBitmapBytes: number;
+  bufferHits: number;
+  bufferMisses: number;
+  bufferCount: number;
+  bufferBytes: number;
+  maxBufferBytes: number;
+}
+
+export interface VideoFrameOutputArgs extends OperationOptions {
+  maxWidth: number;
+  maxHeight: number;
+  /** crop frames to fill area */
+  fill?: boolean;
+  /** image output type. webp is lossless at quality 1 without targetBytes, webp-lossless needs android 10 */
+  encoding?: 'jpeg'|'png'|'webp'|'webp-lossy'|'webp-lossless';
   /** image output quality: 0(small file) to 1(large file) */
   quality?: number;
+  /** lower the quality (android only) until the result is at most this many bytes. jpeg, webp (then always lossy) and webp-lossy, rejected for png and webp-lossless and if quality 0 is still larger */
+  targetBytes?: number;
 }
 
-export interface ResizeImageArgs {
+export type VideoFramesArgs = VideoFrameOutputArgs & ({
+  /** frame times in ms */
+  times: number[];
+  /** decode the exact frame instead of the closest key frame (slower) */
+  exact?: boolean;
+} | {
+  /** first frame, android 9+ */
+  frameIndex: number;
+  /** number of frames from frameIndex, default 1 */
+  frameCount?: number;
+});
+
+export interface VideoFrame {
+  /** index in args.times, or frame index */
+  index: number;
+  /** ms, for frames requested by args.times */
+  time?: number;
+  width: number;
+  height: number;
+  blob: Blob;
+}
+
+export interface ThumbnailCacheStats {
+  memoryHits: number;
+  diskHits: number;
+  misses: number;
+  /** (memoryHits + diskHits) / all requests */
+  hitRate: number;
+  memoryCount: number;
+  memoryBytes: number;
+  maxMemoryBytes: number;
+  diskBytes: number;
+  maxDiskBytes: number;
+}
+
+export interface ProcessImageOutput {
   /** new width */
   maxWidth: number;
   /** new height */
   maxHeight: number;
   /** crop image to fill area */
   fill?: boolean;
-  /** image output type */
-  encoding?: 'jpeg'|'png'|'webp';
+  /** image output type. webp is lossless at quality 1 without targetBytes, webp-lossless needs android 10 */
+  encoding?: 'jpeg'|'png'|'webp'|'webp-lossy'|'webp-lossless';
   /** image output quality: 0(small file) to 1(large file) */
   quality?: number;
+  /** lower the quality (android only) until the result is at most this many bytes. jpeg, webp (then always lossy) and webp-lossy, rejected for png and webp-lossless and if quality 0 is still larger */
+  targetBytes?: number;
+  /** write to this file instead of returning a blob */
+  path?: Path;
+  /**
+   * small output, decoded separately straight to its size into graphics
+   * memory (android 9+)
+   */
+  preview?: boolean;
+}
+
+export interface ProcessImageResult {
+  width: number;
+  height: number;
+  /** unless path was given */
+  blob?: Blob;
+  path?: Path;
 }
 
 export interface PickFileArgs {
@@ -118,6 +253,92 @@ export interface Stat {
   modified?: number;
 }
 
+export interface WalkDirArgs {
+  /** 1 lists only the directory itself, unlimited by default */
+  maxDepth?: number;
+  /** add size and modified */
+  includeStat?: boolean;
+  /** matched against the relative path, or the name if it has no slash. ** matches across directories */
+  glob?: string;
+  /** entries per onEntries call, default 1000 */
+  pageSize?: number;
+}
+
+export interface WalkEntry {
+  /** relative to the walked directory */
+  path: Path;
+  type: 'file'|'directory'|'symlink'|'other';
+  /** file size in bytes for files, with includeStat */
+  size?: number;
+  /** date modified as timestamp, with includeStat */
+  modified?: number;
+  /** set on directories that could not be read */
+  error?: string;
+}
+
+export interface TransferResult {
+  /** bytes copied, or the file size if it was renamed */
+  bytes: number;
+  /** duration in milliseconds */
+  duration: number;
+  bytesPerSecond: number;
+}
+
+export interface TreeResult {
+  /** files deleted or copied */
+  files: number;
+  /** directories deleted or created */
+  directories: number;
+  /** bytes copied */
+  bytes: number;
+  /** entries that failed */
+  errorCount: number;
+  /** the first failed entries, path relative to the tree root */
+  errors: { path: Path; error: string; }[];
+}
+
+export interface AppendStreamArgs {
+  /** bytes buffered in memory before they are written to the file */
+  bufferSize?: number;
+  /** buffered data is written after at most this many milliseconds */
+  flushInterval?: number;
+  /** fsync on every flush */
+  fsync?: boolean;
+}
+
+export interface AppendStreamStats {
+  /** bytes written to the file so far */
+  bytesWritten: number;
+  /** bytes still in the buffer */
+  bytesBuffered: number;
+  /** number of flushes */
+  flushCount: number;
+  /** duration of the last flush in milliseconds */
+  lastFlushLatency: number;
+  /** longest flush in milliseconds */
+  maxFlushLatency: number;
+}
+
+export interface AppendStream {
+  /** append blob */
+  append(blob: Blob): Promise<void>;
+  /** append text */
+  appendText(text: string): Promise<void>;
+  /** write buffered data to the file, optionally fsync */
+  flush(fsync?: boolean): Promise<AppendStreamStats>;
+  /** flush and close */
+  close(): Promise<AppendStreamStats>;
+}
+
+export interface FileHandle {
+  /** read at offset if given (the position is not moved), otherwise at the current position. null at end of file */
+  read(size: number, offset?: number): Promise<Blob|null>;
+  /** write at offset if given, otherwise at the current position */
+  write(blob: Blob, offset?: number): Promise<void>;
+  fsync(): Promise<void>;
+  close(): Promise<void>;
+}
+
 export interface OpenFileEvent {
   /** the url to be opened */
   url: URL;
@@ -217,6 +438,34 @@ export class Fs {
 
   private static initialOpenFileDone = false;
 
+  /**
+   * progress of operations started with a requestId (android only)
+   */
+  public static progress = new Event<ProgressEvent>((emit) => {
+    if (android.Events) {
+      const sub = android.Events.addListener('ReactNativeMoFsProgress', (event) => {
+        emit(event);
+      });
+      return () => {
+        sub.remove();
+      };
+    } else {
+      return () => {};
+    }
+  });
+
+  /**
+   * cancel the operation started with requestId. returns false if it is not
+   * running (or not supported on this platform).
+   */
+  public static async cancel(requestId: string): Promise<boolean> {
+    if (android.Module) {
+      return await android.Module.cancel(requestId);
+    } else {
+      return false;
+    }
+  }
+
   /**
    * get mime type by file extension
    */
@@ -299,14 +548,14 @@ export class Fs {
   /**
    * read file to blob
    */
-  public static async readFile(path: Path): Promise<Blob> {
+  public static async readFile(path: Path, options: OperationOptions = {}): Promise<Blob> {
     if (ios.Module) {
       const blob = new Blob();
       blob.data = await ios.Module.readFile({ path: path });
       return blob;
     } else if (android.Module) {
       const blob = new Blob();
-      blob.data = await android.Module.readFile({ path: path });
+      blob.data = await android.Module.readFile({ path: path, ...options });
       const type = await this.getMimeType(path);
       if (type !== undefined) blob.data.type = type;
       return blob;
@@ -339,6 +588,67 @@ export class Fs {
     }
   }
 
+  /**
+   * read size bytes at offset from a file. on android the file is kept open
+   * between calls, which makes many small reads from the same file cheap. it is only
+   * reopened after changes made through Fs, changes from outside may be read stale.
+   */
+  public static async readFileRange(path: Path, offset: number, size: number): Promise<Blob> {
+    if (ios.Module) {
+      const blob = new Blob();
+      blob.data = await ios.Module.readFile({ path: path, offset: offset, size: size });
+      return blob;
+    } else if (android.Module) {
+      const blob = new Blob();
+      blob.data = await android.Module.readFile({ path: path, offset: offset, size: size, cached: true });
+      return blob;
+    } else {
+      throw new Error('platform not supported');
+    }
+  }
+
+  /**
+   * read file in chunks of chunkSize bytes. every chunk is passed to onChunk
+   * as its own blob, which is closed once onChunk returns.
+   */
+  public static async readFileChunked(path: Path, chunkSize: number, onChunk: (blob: Blob, offset: number) => Promise<void>|void): Promise<void> {
+    if (ios.Module) {
+      const stat = await this.stat(path);
+      if (!stat.exists || stat.dir) throw new Error('file not found');
+      const size = stat.size || 0;
+      for (let offset = 0; offset < size; offset += chunkSize) {
+        const blob = new Blob();
+        blob.data = await ios.Module.readFile({ path: path, offset: offset, size: Math.min(chunkSize, size - offset) });
+        try {
+          await onChunk(blob, offset);
+        } finally {
+          blob.close();
+        }
+      }
+    } else if (android.Module) {
+      const id = await android.Module.openReadStream({ path: path, chunkSize: chunkSize });
+      try {
+        let offset = 0;
+        while (true) {
+          const data = await android.Module.readStream(id);
+          if (!data) break;
+          const blob = new Blob();
+          blob.data = data;
+          try {
+            await onChunk(blob, offset);
+          } finally {
+            blob.close();
+          }
+          offset += data.size;
+        }
+      } finally {
+        await android.Module.closeReadStream(id);
+      }
+    } else {
+      throw new Error('platform not supported');
+    }
+  }
+
   /**
    * read URL to blob (using fetch)
    */
@@ -350,11 +660,11 @@ export class Fs {
   /**
    * write blob to file
    */
-  public static async writeFile(path: Path, blob: Blob): Promise<void> {
+  public static async writeFile(path: Path, blob: Blob, options: OperationOptions = {}): Promise<void> {
     if (ios.Module) {
       await ios.Module.writeFile({ path: path, blob: blob.data, offset: 0, truncate: true });
     } else if (android.Module) {
-      await android.Module.writeFile({ path: path, blob: blob.data, offset: 0, truncate: true });
+      await android.Module.writeFile({ path: path, blob: blob.data, offset: 0, truncate: true, ...options });
     } else {
       throw new Error('platform not supported');
     }
@@ -397,6 +707,112 @@ export class Fs {
     }
   }
 
+  /**
+   * open file for random access reads and writes. r: read, w: truncate and write, a: append, rw: read and write.
+   * handles idle for 5 minutes are closed on android.
+   */
+  public static async openFileHandle(path: Path, mode: 'r'|'w'|'a'|'rw' = 'r'): Promise<FileHandle> {
+    if (ios.Module) {
+      const module = ios.Module;
+      if (mode === 'w') {
+        const empty = await this.createBlob('', 'utf8');
+        try {
+          await module.writeFile({ path: path, blob: empty.data, offset: 0, truncate: true });
+        } finally {
+          empty.close();
+        }
+      }
+      let position = (mode === 'a') ? ((await this.stat(path)).size || 0) : 0;
+      let closed = false;
+      const check = (write: boolean) => {
+        if (closed) throw new Error('handle closed');
+        if (write && mode === 'r') throw new Error('not writable');
+        if (!write && (mode === 'w' || mode === 'a')) throw new Error('not readable');
+      };
+      return {
+        read: async (size, offset) => {
+          check(false);
+          const start = (offset !== undefined) ? offset : position;
+          const fileSize = (await this.stat(path)).size || 0;
+          if (start >= fileSize) return null;
+          const blob = new Blob();
+          blob.data = await module.readFile({ path: path, offset: start, size: Math.min(size, fileSize - start) });
+          if (offset === undefined) position += blob.data.size;
+          return blob;
+        },
+        write: async (blob, offset) => {
+          check(true);
+          const start = (mode === 'a') ? ((await this.stat(path)).size || 0) : (offset !== undefined) ? offset : position;
+          await module.writeFile({ path: path, blob: blob.data, offset: start, truncate: false });
+          if (offset === undefined || mode === 'a') position = start + blob.data.size;
+        },
+        fsync: async () => {
+          if (closed) throw new Error('handle closed');
+        },
+        close: async () => {
+          closed = true;
+        },
+      };
+    } else if (android.Module) {
+      const module = android.Module;
+      const handle = await module.openFile(path, mode);
+      return {
+        read: async (size, offset) => {
+          const data = await module.readHandle(handle, (offset !== undefined) ? { size: size, offset: offset } : { size: size });
+          if (!data) return null;
+          const blob = new Blob();
+          blob.data = data;
+          return blob;
+        },
+        write: (blob, offset) => module.writeHandle(handle, (offset !== undefined) ? { blob: blob.data, offset: offset } : { blob: blob.data }),
+        fsync: () => module.fsyncHandle(handle),
+        close: () => module.closeHandle(handle),
+      };
+    } else {
+      throw new Error('platform not supported');
+    }
+  }
+
+  /**
+   * open a buffered stream for appending to a file. on android data is
+   * collected natively and written in batches. on ios every append is
+   * written directly.
+   */
+  public static async openAppendStream(path: Path, args: AppendStreamArgs = {}): Promise<AppendStream> {
+    if (ios.Module) {
+      let bytesWritten = 0;
+      const stats = () => ({ bytesWritten: bytesWritten, bytesBuffered: 0, flushCount: 0, lastFlushLatency: 0, maxFlushLatency: 0 });
+      return {
+        append: async (blob) => {
+          await this.appendFile(path, blob);
+          bytesWritten += blob.data.size;
+        },
+        appendText: async (text) => {
+          const blob = await this.createBlob(text, 'utf8');
+          try {
+            await this.appendFile(path, blob);
+            bytesWritten += blob.data.size;
+          } finally {
+            blob.close();
+          }
+        },
+        flush: async () => stats(),
+        close: async () => stats(),
+      };
+    } else if (android.Module) {
+      const module = android.Module;
+      const id = await module.openAppendStream({ path: path, ...args });
+      return {
+        append: (blob) => module.appendStream(id, { blob: blob.data }),
+        appendText: (text) => module.appendStream(id, { str: text, mode: 'utf8' }),
+        flush: (fsync = false) => module.flushAppendStream(id, fsync),
+        close: () => module.closeAppendStream(id),
+      };
+    } else {
+      throw new Error('platform not supported');
+    }
+  }
+
   /**
    * append text to file
    */
@@ -424,11 +840,71 @@ export class Fs {
   /**
    * delete file
    */
-  public static async deleteFile(path: Path, recursive = false): Promise<void> {
+  public static async deleteFile(path: Path, recursive = false, options: OperationOptions = {}): Promise<void> {
     if (ios.Module) {
       await ios.Module.deleteFile(path, recursive);
     } else if (android.Module) {
-      await android.Module.deleteFile(path, recursive);
+      await android.Module.deleteFile(path, recursive, options);
+    } else {
+      throw new Error('platform not supported');
+    }
+  }
+
+  /**
+   * delete directory with contents in parallel. failed entries are collected and do not stop the delete.
+   */
+  public static async deleteTree(path: Path, options: OperationOptions = {}): Promise<TreeResult> {
+    if (ios.Module) {
+      const res: TreeResult = { files: 0, directories: 1, bytes: 0, errorCount: 0, errors: [] };
+      await this.walkDir(path, {}, (entries) => {
+        for (const entry of entries) {
+          if (entry.type === 'directory') res.directories++;
+          else res.files++;
+        }
+      });
+      await ios.Module.deleteFile(path, true);
+      return res;
+    } else if (android.Module) {
+      return await android.Module.deleteTree(path, options);
+    } else {
+      throw new Error('platform not supported');
+    }
+  }
+
+  /**
+   * copy the contents of directory fromPath into toPath, files are copied in parallel on android.
+   * failed entries are collected and do not stop the copy. symlinks are not copied.
+   */
+  public static async copyTree(fromPath: Path, toPath: Path, options: { overwrite?: boolean; } & OperationOptions = {}): Promise<TreeResult> {
+    if (ios.Module) {
+      const res: TreeResult = { files: 0, directories: 0, bytes: 0, errorCount: 0, errors: [] };
+      await this.createDir(toPath);
+      await this.walkDir(fromPath, {}, async (entries) => {
+        for (const entry of entries) {
+          try {
+            if (entry.type === 'directory') {
+              await this.createDir(toPath + '/' + entry.path);
+              res.directories++;
+            } else {
+              if (!options.overwrite && (await this.stat(toPath + '/' + entry.path)).exists) throw new Error('exists');
+              const blob = await this.readFile(fromPath + '/' + entry.path);
+              try {
+                await this.writeFile(toPath + '/' + entry.path, blob);
+                res.bytes += blob.data.size;
+              } finally {
+                blob.close();
+              }
+              res.files++;
+            }
+          } catch (e) {
+            res.errorCount++;
+            if (res.errors.length < 100) res.errors.push({ path: entry.path, error: String(e) });
+          }
+        }
+      });
+      return res;
+    } else if (android.Module) {
+      return await android.Module.copyTree(fromPath, toPath, options);
     } else {
       throw new Error('platform not supported');
     }
@@ -447,6 +923,46 @@ export class Fs {
     }
   }
 
+  /**
+   * copy file. the target is written to a temp file and renamed, so it is either complete or unchanged.
+   */
+  public static async copyFile(fromPath: Path, toPath: Path, options: { overwrite?: boolean; preserveMtime?: boolean; } & OperationOptions = {}): Promise<TransferResult> {
+    if (ios.Module) {
+      if (!options.overwrite && (await this.stat(toPath)).exists) throw new Error('exists');
+      const start = Date.now();
+      const blob = await this.readFile(fromPath);
+      try {
+        await this.writeFile(toPath, blob);
+        const duration = Date.now() - start;
+        return { bytes: blob.data.size, duration: duration, bytesPerSecond: duration > 0 ? blob.data.size * 1000 / duration : 0 };
+      } finally {
+        blob.close();
+      }
+    } else if (android.Module) {
+      return await android.Module.copyFile(fromPath, toPath, options);
+    } else {
+      throw new Error('platform not supported');
+    }
+  }
+
+  /**
+   * move file or directory. renames if possible, otherwise copies and deletes the source (android).
+   */
+  public static async moveFile(fromPath: Path, toPath: Path, options: { overwrite?: boolean; } & OperationOptions = {}): Promise<TransferResult & { renamed: boolean; }> {
+    if (ios.Module) {
+      const stat = await this.stat(fromPath);
+      if (!stat.exists) throw new Error('not found');
+      if (!options.overwrite && (await this.stat(toPath)).exists) throw new Error('exists');
+      const start = Date.now();
+      await ios.Module.renameFile(fromPath, toPath);
+      return { bytes: stat.size || 0, duration: Date.now() - start, bytesPerSecond: 0, renamed: true };
+    } else if (android.Module) {
+      return await android.Module.moveFile(fromPath, toPath, options);
+    } else {
+      throw new Error('platform not supported');
+    }
+  }
+
   /**
    * list files in directory
    */
@@ -460,6 +976,111 @@ export class Fs {
     }
   }
 
+  /**
+   * walk directory recursively, entries are passed to onEntries in pages. symlinks are not followed.
+   * glob filtering is done here for both platforms.
+   */
+  public static async walkDir(path: Path, args: WalkDirArgs, onEntries: (entries: WalkEntry[]) => Promise<void>|void): Promise<void> {
+    const pageSize = args.pageSize || 1000;
+    const glob = args.glob !== undefined ? this.globToRegExp(args.glob) : undefined;
+    const globName = args.glob !== undefined && args.glob.indexOf('/') < 0;
+    let page: WalkEntry[] = [];
+    const add = async (entry: WalkEntry) => {
+      if (glob && !glob.test(globName ? entry.path.substr(entry.path.lastIndexOf('/') + 1) : entry.path)) return;
+      page.push(entry);
+      if (page.length >= pageSize) {
+        const tmp = page;
+        page = [];
+        await onEntries(tmp);
+      }
+    };
+    if (ios.Module) {
+      const maxDepth = args.maxDepth || Infinity;
+      const walk = async (prefix: string, depth: number) => {
+        for (const name of await ios.Module!.listDir(path + prefix)) {
+          const stat = await this.stat(path + prefix + '/' + name);
+          if (!stat.exists) continue;
+          const entry: WalkEntry = { path: (prefix + '/' + name).substr(1), type: stat.dir ? 'directory' : 'file' };
+          if (args.includeStat) {
+            if (!stat.dir) entry.size = stat.size || 0;
+            entry.modified = stat.modified;
+          }
+          await add(entry);
+          if (stat.dir && depth < maxDepth) {
+            await walk(prefix + '/' + name, depth + 1);
+          }
+        }
+      };
+      await walk('', 1);
+    } else if (android.Module) {
+      // glob stays on this side, everything else is passed on
+      const walkArgs: { maxDepth?: number; includeStat?: boolean; pageSize?: number; } = { pageSize };
+      if (args.maxDepth !== undefined) walkArgs.maxDepth = args.maxDepth;
+      if (args.includeStat !== undefined) walkArgs.includeStat = args.includeStat;
+      const id = await android.Module.openWalk(path, walkArgs);
+      try {
+        while (true) {
+          const entries = await android.Module.readWalk(id);
+          if (!entries) break;
+          for (const i of entries) {
+            await add({
+              path: i.path,
+              type: i.type,
+              size: i.size,
+              modified: i.lastModified,
+              error: i.error,
+            });
+          }
+        }
+      } finally {
+        await android.Module.closeWalk(id);
+      }
+    } else {
+      throw new Error('platform not supported');
+    }
+    if (page.length > 0) await onEntries(page);
+  }
+
+  private static globToRegExp(glob: string): RegExp {
+    let res = '';
+    let braces = 0;
+    for (let i = 0; i < glob.length; i++) {
+      const c = glob[i];
+      if (c === '*' && glob[i + 1] === '*') {
+        i++;
+        if (glob[i + 1] === '/') {
+          i++;
+          res += '(?:.*/)?';
+        } else {
+          res += '.*';
+        }
+      } else if (c === '*') {
+        res += '[^/]*';
+      } else if (c === '?') {
+        res += '[^/]';
+      } else if (c === '{') {
+        braces++;
+        res += '(?:';
+      } else if (c === '}' && braces > 0) {
+        braces--;
+        res += ')';
+      } else if (c === ',' && braces > 0) {
+        res += '|';
+      } else if (c === '[' && glob.indexOf(']', i + 2) > 0) {
+        const end = glob.indexOf(']', i + 2);
+        const cls = glob.substring(i + 1, end);
+        res += '[' + (cls[0] === '!' ? '^' + cls.substr(1) : cls).replace(/[\\[]/g, '\\$&') + ']';
+        i = end;
+      } else if (c === '\\' && i + 1 < glob.length) {
+        i++;
+        res += glob[i].replace(/[.*+?^${}()|[\]\\/]/g, '\\$&');
+      } else {
+        res += c.replace(/[.*+?^${}()|[\]\\/]/g, '\\$&');
+      }
+    }
+    return new RegExp('^' + res + '$');
+  }
+
   /**
    * create directory. succeeds if directory exists. creates parents.
    */
@@ -518,11 +1139,81 @@ export class Fs {
   /**
    * get hash of a blob. can calculate md5 / sha1 / sha256. returns hex.
    */
-  public static async getBlobHash(blob: Blob, algorithm: 'md5'|'sha1'|'sha256'|'sha512'): Promise<HexString> {
+  public static async getBlobHash(blob: Blob, algorithm: 'md5'|'sha1'|'sha256'|'sha512', options: OperationOptions = {}): Promise<HexString> {
     if (ios.Module) {
       return await ios.Module.getBlobHash(blob.data, algorithm);
     } else if (android.Module) {
-      return await android.Module.getBlobHash(blob.data, algorithm);
+      return await android.Module.getBlobHash(blob.data, algorithm, options);
+    } else {
+      throw new Error('platform not supported');
+    }
+  }
+
+  /**
+   * get hash of a file or a part of it without reading it into a blob.
+   * can calculate md5 / sha1 / sha256 / sha512. returns hex.
+   */
+  public static async getFileHash(path: Path, algorithm: 'md5'|'sha1'|'sha256'|'sha512', options: { offset?: number; length?: number; } & OperationOptions = {}): Promise<HexString> {
+    if (ios.Module) {
+      const blob = new Blob();
+      blob.data = await ios.Module.readFile({ path: path, offset: options.offset, size: options.length });
+      try {
+        return await ios.Module.getBlobHash(blob.data, algorithm);
+      } finally {
+        blob.close();
+      }
+    } else if (android.Module) {
+      return await android.Module.getFileHash(path, algorithm, options);
+    } else {
+      throw new Error('platform not supported');
+    }
+  }
+
+  /**
+   * calculate several hashes / hmacs of a blob or file with a single pass
+   * over the data. returns hex strings by name.
+   */
+  public static async getHashes(source: Blob|Path, algorithms: HashArgs[], options: OperationOptions = {}): Promise<{ [name: string]: HexString }> {
+    const specs = algorithms.map((i) => ({
+      algorithm: i.algorithm,
+      key: (i.key !== undefined && typeof i.key !== 'string') ? base64.encode(i.key) : i.key,
+      name: i.name || (i.key !== undefined ? 'hmac-' + i.algorithm : i.algorithm),
+    }));
+    if (ios.Module) {
+      const blob = (typeof source === 'string') ? await this.readFile(source) : source;
+      try {
+        const res: { [name: string]: HexString } = {};
+        for (const spec of specs) {
+          if (spec.key !== undefined) {
+            if (spec.algorithm === 'md5') throw new Error('invalid algorithm');
+            res[spec.name] = await ios.Module.getBlobHmac(blob.data, spec.algorithm, spec.key);
+          } else {
+            res[spec.name] = await ios.Module.getBlobHash(blob.data, spec.algorithm);
+          }
+        }
+        return res;
+      } finally {
+        if (blob !== source) blob.close();
+      }
+    } else if (android.Module) {
+      return await android.Module.getHashes((typeof source === 'string') ? { path: source } : { blob: source.data }, specs, options);
+    } else {
+      throw new Error('platform not supported');
+    }
+  }
+
+  /**
+   * tree hash of a blob or file, chunks are hashed in parallel (android only).
+   *
+   * the data is split into chunks of chunkSize bytes (the last one may be
+   * shorter, empty data is a single empty chunk) and every chunk is hashed.
+   * the root is built level by level: adjacent hashes are combined as
+   * H(left || right) over the raw digest bytes, an odd hash at the end of a
+   * level is carried up unchanged. with a single chunk the root is its hash.
+   */
+  public static async getTreeHash(source: Blob|Path, args: TreeHashArgs = {}): Promise<TreeHashResult> {
+    if (android.Module) {
+      return await android.Module.getTreeHash((typeof source === 'string') ? { path: source } : { blob: source.data }, args);
     } else {
       throw new Error('platform not supported');
     }
@@ -552,17 +1243,46 @@ export class Fs {
     const iv = (typeof args.iv !== 'string') ? base64.encode(args.iv) : args.iv;
     if (ios.Module) {
       const resBlob = new Blob();
+      if (args.algorithm !== 'aes-cbc') throw new Error('algorithm not supported');
       resBlob.data = await ios.Module.cryptBlob(blob.data, args.algorithm, args.direction === 'encrypt', key, iv);
       return resBlob;
     } else if (android.Module) {
       const resBlob = new Blob();
-      resBlob.data = await android.Module.cryptBlob(blob.data, args.algorithm, args.direction === 'encrypt', key, iv);
+      resBlob.data = await android.Module.cryptBlob(blob.data, args.algorithm, args.direction === 'encrypt', key, iv, { requestId: args.requestId });
       return resBlob;
     } else {
       throw new Error('platform not supported');
     }
   }
 
+  /**
+   * encrypt / decrypt a file to another file. on android the data is
+   * streamed and the destination is replaced atomically. aes-gcm decryption
+   * holds the whole file in memory until the tag is verified and is limited
+   * to 64 MB on android.
+   */
+  public static async cryptFile(fromPath: Path, toPath: Path, args: CryptBlobArgs): Promise<void> {
+    if (ios.Module) {
+      const blob = await this.readFile(fromPath);
+      try {
+        const resBlob = await this.cryptBlob(blob, args);
+        try {
+          await this.writeFile(toPath, resBlob);
+        } finally {
+          resBlob.close();
+        }
+      } finally {
+        blob.close();
+      }
+    } else if (android.Module) {
+      const key = (typeof args.key !== 'string') ? base64.encode(args.key) : args.key;
+      const iv = (typeof args.iv !== 'string') ? base64.encode(args.iv) : args.iv;
+      await android.Module.cryptFile(fromPath, toPath, args.algorithm, args.direction === 'encrypt', key, iv, { requestId: args.requestId });
+    } else {
+      throw new Error('platform not supported');
+    }
+  }
+
   /**
    * get size of an image.
    */
@@ -576,19 +1296,66 @@ export class Fs {
     }
   }
 
+  /**
+   * get image size of a file without reading the whole file on android
+   */
+  public static async getFileImageSize(path: Path): Promise<{ width: number; height: number; }> {
+    if (ios.Module) {
+      const blob = await this.readFile(path);
+      try {
+        return await ios.Module.getImageSize(blob.data);
+      } finally {
+        blob.close();
+      }
+    } else if (android.Module) {
+      return await android.Module.getFileImageSize(path);
+    } else {
+      throw new Error('platform not supported');
+    }
+  }
+
   /**
    * get exif data
+   * tags limits the result to these keys (TAG_* names on android), which is a lot faster.
    */
-  public static async getExif(blob: Blob): Promise<any> {
+  public static async getExif(blob: Blob, tags?: string[]): Promise<any> {
     if (ios.Module) {
       try {
-        return await ios.Module.getExif(blob.data);
+        const res = await ios.Module.getExif(blob.data);
+        if (!tags || !res) return res;
+        const picked: any = {};
+        for (const tag of tags) {
+          if (tag in res) picked[tag] = res[tag];
+        }
+        return picked;
+      } catch (e) {
+        return undefined;
+      }
+    } else if (android.Module) {
+      try {
+        return (await android.Module.getExif(blob.data, tags || null)) || undefined;
       } catch (e) {
         return undefined;
       }
+    } else {
+      throw new Error('platform not supported');
+    }
+  }
+
+  /**
+   * get exif data of a file, on android only the exif segment of jpeg files is read.
+   */
+  public static async getFileExif(path: Path, tags?: string[]): Promise<any> {
+    if (ios.Module) {
+      const blob = await this.readFile(path);
+      try {
+        return await this.getExif(blob, tags);
+      } finally {
+        blob.close();
+      }
     } else if (android.Module) {
       try {
-        return (await android.Module.getExif(blob.data)) || undefined;
+        return (await android.Module.getFileExif(path, tags || null)) || undefined;
       } catch (e) {
         return undefined;
       }
@@ -608,7 +1375,7 @@ export class Fs {
       const res = new Blob();
       res.data = await ios.Module.updateImage(blob.data, {
         ...args,
-        encoding: (args.encoding === 'webp') ? 'png' : args.encoding,
+        encoding: (args.encoding === 'webp' || args.encoding === 'webp-lossy' || args.encoding === 'webp-lossless') ? 'png' : args.encoding,
       });
       return res;
     } else if (android.Module) {
@@ -620,11 +1387,7 @@ export class Fs {
     }
   }
 
-  /**
-   * resize an image
-   */
-  public static async resizeImage(blob: Blob, args: ResizeImageArgs): Promise<Blob> {
-    const size = await this.getImageSize(blob);
+  private static getResizeArgs(size: { width: number; height: number; }, args: ResizeImageArgs): UpdateImageArgs {
     let scale = 1;
     let width = size.width;
     let height = size.height;
@@ -647,7 +1410,7 @@ export class Fs {
       width *= scale;
       height *= scale;
     }
-    return await this.updateImage(blob, {
+    return {
       ...args,
       matrix: [
         scale, 0, tx,
@@ -656,7 +1419,111 @@ export class Fs {
       ],
       width: width,
       height: height,
-    });
+    };
+  }
+
+  /**
+   * resize an image
+   */
+  public static async resizeImage(blob: Blob, args: ResizeImageArgs): Promise<Blob> {
+    const size = await this.getImageSize(blob);
+    return await this.updateImage(blob, this.getResizeArgs(size, args));
+  }
+
+  /**
+   * same as updateImage, but from file to file. on android the image does not
+   * pass through blobs. toPath is replaced atomically and may be fromPath.
+   */
+  public static async updateImageFile(fromPath: Path, toPath: Path, args: UpdateImageArgs): Promise<void> {
+    if (args.quality !== undefined && (args.quality < 0 || args.quality > 1)) throw new Error('quality must be 0..1');
+    if (ios.Module) {
+      const blob = await this.readFile(fromPath);
+      try {
+        const res = await this.updateImage(blob, args);
+        try {
+          await this.writeFile(toPath, res);
+        } finally {
+          res.close();
+        }
+      } finally {
+        blob.close();
+      }
+    } else if (android.Module) {
+      await android.Module.updateImageFile(fromPath, toPath, args);
+    } else {
+      throw new Error('platform not supported');
+    }
+  }
+
+  /**
+   * resize an image file
+   */
+  public static async resizeImageFile(fromPath: Path, toPath: Path, args: ResizeImageArgs): Promise<void> {
+    const size = await this.getFileImageSize(fromPath);
+    await this.updateImageFile(fromPath, toPath, this.getResizeArgs(size, args));
+  }
+
+  /**
+   * limit the memory kept for reusing bitmaps and encode buffers between
+   * image operations (android only, 0 disables reuse).
+   */
+  public static setImagePoolLimits(args: { maxBitmapBytes?: number; maxBufferBytes?: number; }) {
+    if (android.Module) {
+      android.Module.setImagePoolLimits(args);
+    }
+  }
+
+  /**
+   * hit / miss counters and memory use of the image pools (android only).
+   */
+  public static async getImagePoolStats(): Promise<ImagePoolStats|undefined> {
+    if (android.Module) {
+      return await android.Module.getImagePoolStats();
+    }
+    return undefined;
+  }
+
+  /**
+   * create several resized versions of an image. on android the image is
+   * decoded only once and the outputs are encoded in parallel.
+   */
+  public static async processImage(source: Blob|Path, outputs: ProcessImageOutput[], options: OperationOptions = {}): Promise<ProcessImageResult[]> {
+    for (const output of outputs) {
+      if (output.quality !== undefined && (output.quality < 0 || output.quality > 1)) throw new Error('quality must be 0..1');
+    }
+    if (ios.Module) {
+      const blob = (typeof source === 'string') ? await this.readFile(source) : source;
+      try {
+        const res: ProcessImageResult[] = [];
+        for (const output of outputs) {
+          const resized = await this.resizeImage(blob, output);
+          const size = await this.getImageSize(resized);
+          if (output.path) {
+            try {
+              await this.writeFile(output.path, resized);
+            } finally {
+              resized.close();
+            }
+            res.push({ ...size, path: output.path });
+          } else {
+            res.push({ ...size, blob: resized });
+          }
+        }
+        return res;
+      } finally {
+        if (blob !== source) blob.close();
+      }
+    } else if (android.Module) {
+      const res = await android.Module.processImage((typeof source === 'string') ? { path: source } : { blob: source.data }, outputs, options);
+      return res.map((i) => {
+        if (!i.blob) return { width: i.width, height: i.height, path: i.path };
+        const blob = new Blob();
+        blob.data = i.blob;
+        return { width: i.width, height: i.height, blob: blob };
+      });
+    } else {
+      throw new Error('platform not supported');
+    }
   }
 
   /**
@@ -694,6 +1561,92 @@ export class Fs {
       source.close();
     }
   }
+  /**
+   * thumbnail of an image or video file. on android it is cached in memory
+   * and in the cache dir (by path, size, modification time and args) unless
+   * args.cache is false.
+   */
+  public static async createFileThumbnail(path: Path, args: ResizeImageArgs & { cache?: boolean; }): Promise<Blob|undefined> {
+    if (args.quality !== undefined && (args.quality < 0 || args.quality > 1)) throw new Error('quality must be 0..1');
+    if (ios.Module) {
+      const blob = await this.readFile(path);
+      try {
+        return await this.createThumbnail(blob, args);
+      } finally {
+        blob.close();
+      }
+    } else if (android.Module) {
+      try {
+        const res = new Blob();
+        res.data = await android.Module.createFileThumbnail(path, args);
+        return res;
+      } catch (e) {
+        return undefined;
+      }
+    } else {
+      throw new Error('platform not supported');
+    }
+  }
+
+  /**
+   * frames of a video file at the given times (android only). all frames are
+   * taken from a single open of the video. if onFrame is given, frames are
+   * passed to it as soon as they are ready and the result is empty.
+   */
+  public static async getVideoFrames(path: Path, args: VideoFramesArgs, onFrame?: (frame: VideoFrame) => void): Promise<VideoFrame[]> {
+    if (args.quality !== undefined && (args.quality < 0 || args.quality > 1)) throw new Error('quality must be 0..1');
+    const toFrame = (i: { index: number; time?: number; width: number; height: number; blob: BlobData; }) => {
+      const blob = new Blob();
+      blob.data = i.blob;
+      return { index: i.index, time: i.time, width: i.width, height: i.height, blob: blob };
+    };
+    if (android.Module && android.Events) {
+      if (!onFrame) {
+        return (await android.Module.getVideoFrames(path, args)).map(toFrame);
+      }
+      const requestId = args.requestId || ('frames-' + Date.now() + '-' + Math.random());
+      const sub = android.Events.addListener('ReactNativeMoFsVideoFrame', (event) => {
+        if (event.requestId === requestId) onFrame(toFrame(event));
+      });
+      try {
+        await android.Module.getVideoFrames(path, { ...args, requestId: requestId, stream: true });
+        return [];
+      } finally {
+        sub.remove();
+      }
+    } else {
+      throw new Error('platform not supported');
+    }
+  }
+
+  /**
+   * limit the thumbnail cache (android only). 0 disables a tier.
+   */
+  public static setThumbnailCacheLimits(args: { maxMemoryBytes?: number; maxDiskBytes?: number; }) {
+    if (android.Module) {
+      android.Module.setThumbnailCacheLimits(args);
+    }
+  }
+
+  /**
+   * hit rate and size of the thumbnail cache (android only).
+   */
+  public static async getThumbnailCacheStats(): Promise<ThumbnailCacheStats|undefined> {
+    if (android.Module) {
+      return await android.Module.getThumbnailCacheStats();
+    }
+    return undefined;
+  }
+
+  /**
+   * remove all cached thumbnails (android only).
+   */
+  public static async clearThumbnailCache(): Promise<void> {
+    if (android.Module) {
+      await android.Module.clearThumbnailCache();
+    }
+  }
+
 
   /**
    * share file to another app